@@ -0,0 +1,127 @@
+package net.java.sezpoz.perftest;
+
+import java.lang.annotation.Annotation;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import net.java.sezpoz.Index;
+import net.java.sezpoz.IndexItem;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Attribute access, hashing, and comparison of annotation proxies,
+ * against the JDK's own instances of the same annotations.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class AnnotationBenchmark {
+
+    private URLClassLoader loader;
+    private List<IndexItem<Entry,Runnable>> items;
+    private List<Entry> proxies;
+    private List<Entry> live;
+    private Set<Annotation> proxySet;
+    private Set<Annotation> liveSet;
+
+    @Setup public void setUp() throws Exception {
+        loader = Fixture.get(1, 100).newLoader();
+        items = new ArrayList<IndexItem<Entry,Runnable>>();
+        proxies = new ArrayList<Entry>();
+        live = new ArrayList<Entry>();
+        for (IndexItem<Entry,Runnable> item : Index.load(Entry.class, Runnable.class, loader)) {
+            items.add(item);
+            proxies.add(item.annotation());
+            live.add(item.element().getAnnotation(Entry.class));
+        }
+        proxySet = new HashSet<Annotation>(proxies);
+        liveSet = new HashSet<Annotation>(live);
+    }
+
+    @TearDown public void tearDown() throws Exception {
+        loader.close();
+        Index.clearCache();
+    }
+
+    /** Reads attributes through {@link IndexItem#annotation} as a filtering loop would. */
+    @Benchmark public int proxyAttributes() {
+        int sum = 0;
+        for (IndexItem<Entry,Runnable> item : items) {
+            sum += item.annotation().weight() + item.annotation().category().length() + item.annotation().tags().length;
+        }
+        return sum;
+    }
+
+    @Benchmark public int liveAttributes() {
+        int sum = 0;
+        for (Entry e : live) {
+            sum += e.weight() + e.category().length() + e.tags().length;
+        }
+        return sum;
+    }
+
+    @Benchmark public int proxyHashCode() {
+        int h = 0;
+        for (Entry e : proxies) {
+            h += e.hashCode();
+        }
+        return h;
+    }
+
+    @Benchmark public int liveHashCode() {
+        int h = 0;
+        for (Entry e : live) {
+            h += e.hashCode();
+        }
+        return h;
+    }
+
+    /** Looks up each proxy in a set of the JDK instances, so every lookup calls {@code equals}. */
+    @Benchmark public int proxyEquals() {
+        int found = 0;
+        for (Entry e : proxies) {
+            if (liveSet.contains(e)) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    @Benchmark public int liveEquals() {
+        int found = 0;
+        for (Entry e : live) {
+            if (proxySet.contains(e)) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    /** Proxies as keys of a set of proxies. */
+    @Benchmark public int proxySetContains() {
+        int found = 0;
+        for (Entry e : proxies) {
+            if (proxySet.contains(e)) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+}
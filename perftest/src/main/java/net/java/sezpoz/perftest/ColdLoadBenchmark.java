@@ -0,0 +1,76 @@
+package net.java.sezpoz.perftest;
+
+import java.net.URLClassLoader;
+import java.util.ServiceLoader;
+import java.util.concurrent.TimeUnit;
+import net.java.sezpoz.Index;
+import net.java.sezpoz.IndexItem;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Loading an index through a class loader which has not been used before,
+ * as at application startup, with the parse cache cleared each time.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 20)
+@Fork(2)
+@State(Scope.Benchmark)
+public class ColdLoadBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int jars;
+
+    @Param({"100"})
+    public int entries;
+
+    private Fixture fixture;
+    private URLClassLoader loader;
+
+    @Setup(Level.Trial) public void setUpFixture() throws Exception {
+        fixture = Fixture.get(jars, entries);
+    }
+
+    @Setup(Level.Invocation) public void setUp() {
+        Index.clearCache();
+        loader = fixture.newLoader();
+    }
+
+    @TearDown(Level.Invocation) public void tearDown() throws Exception {
+        loader.close();
+    }
+
+    @Benchmark public void iterate(Blackhole bh) {
+        for (IndexItem<Entry,Runnable> item : Index.load(Entry.class, Runnable.class, loader)) {
+            bh.consume(item.className());
+        }
+    }
+
+    /** Includes loading every registered class. */
+    @Benchmark public void instantiate(Blackhole bh) throws InstantiationException {
+        for (IndexItem<Entry,Runnable> item : Index.load(Entry.class, Runnable.class, loader)) {
+            bh.consume(item.instance());
+        }
+    }
+
+    @Benchmark public void serviceLoader(Blackhole bh) {
+        for (Runnable r : ServiceLoader.load(Runnable.class, loader)) {
+            bh.consume(r);
+        }
+    }
+
+}
@@ -0,0 +1,195 @@
+package net.java.sezpoz.perftest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Processor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.TypeElement;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import net.java.sezpoz.impl.Indexer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compiling a generated source tree of {@link Entry} classes, one per file,
+ * with another processor generating one more annotated class in each of several rounds.
+ * Compare {@code indexer=true} against {@code false} for the cost of {@link Indexer} itself.
+ * With {@code mode=clean} every source is compiled into an empty directory;
+ * with {@code full} or {@code incremental} only {@link #RECOMPILED} of them are compiled again
+ * against the output of an earlier build, as an IDE or build tool would after a small edit,
+ * with {@code -Asezpoz.incremental} off or on respectively, so that the existing index must be read and merged.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompileBenchmark {
+
+    @Param({"10000"})
+    public int classes;
+
+    @Param({"1", "10"})
+    public int rounds;
+
+    @Param({"true", "false"})
+    public boolean indexer;
+
+    @Param({"clean", "full", "incremental"})
+    public String mode;
+
+    /** number of sources compiled again, other than in {@code clean} mode */
+    static final int RECOMPILED = 10;
+
+    private Path work;
+    private List<Path> sources;
+    private List<Path> recompiled;
+    private Path baseDir;
+    private Path classesDir;
+
+    @Setup(Level.Trial) public void generate() throws IOException {
+        work = Files.createTempDirectory("sezpoz-compile");
+        sources = new ArrayList<Path>();
+        for (int i = 0; i < classes; i++) {
+            String pkg = "gen" + (i / 100);
+            Path src = work.resolve("src").resolve(pkg).resolve("Impl" + i + ".java");
+            Files.createDirectories(src.getParent());
+            Files.write(src, source(pkg, "Impl" + i, i).getBytes(StandardCharsets.UTF_8));
+            sources.add(src);
+        }
+        classesDir = work.resolve("classes");
+        if (!mode.equals("clean")) {
+            recompiled = new ArrayList<Path>();
+            for (int i = 0; i < RECOMPILED; i++) {
+                recompiled.add(sources.get(i * classes / RECOMPILED));
+            }
+            baseDir = work.resolve("base");
+            Files.createDirectories(baseDir);
+            compile(sources, baseDir, false);
+        }
+    }
+
+    @Setup(Level.Invocation) public void clean() throws IOException {
+        delete(classesDir);
+        if (baseDir != null) {
+            try (Stream<Path> files = Files.walk(baseDir)) {
+                for (Path f : files.collect(Collectors.toList())) {
+                    Files.copy(f, classesDir.resolve(baseDir.relativize(f).toString()));
+                }
+            }
+        } else {
+            Files.createDirectories(classesDir);
+        }
+    }
+
+    @TearDown(Level.Trial) public void tearDown() throws IOException {
+        delete(work);
+    }
+
+    @Benchmark public void compile() throws IOException {
+        if (mode.equals("clean")) {
+            compile(sources, classesDir, false);
+        } else {
+            compile(recompiled, classesDir, mode.equals("incremental"));
+        }
+    }
+
+    private void compile(List<Path> toCompile, Path outputDir, boolean incremental) throws IOException {
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        StringWriter log = new StringWriter();
+        try (StandardJavaFileManager fm = javac.getStandardFileManager(null, null, StandardCharsets.UTF_8)) {
+            Iterable<? extends JavaFileObject> units = fm.getJavaFileObjectsFromPaths(toCompile);
+            String classpath = System.getProperty("java.class.path") + File.pathSeparator + outputDir;
+            JavaCompiler.CompilationTask task = javac.getTask(new PrintWriter(log), fm, null,
+                    Arrays.asList("-classpath", classpath, "-d", outputDir.toString(), "-Asezpoz.quiet=true", "-Asezpoz.incremental=" + incremental),
+                    null, units);
+            List<Processor> processors = new ArrayList<Processor>();
+            if (indexer) {
+                processors.add(new Indexer());
+            }
+            processors.add(new GeneratingProcessor(rounds - 1));
+            task.setProcessors(processors);
+            if (!task.call()) {
+                throw new IOException("could not compile:\n" + log);
+            }
+        }
+    }
+
+    static String source(String pkg, String name, int i) {
+        return "package " + pkg + ";\n" +
+                "@net.java.sezpoz.perftest.Entry(weight=" + i + ", category=\"c" + (i % Fixture.CATEGORIES) + "\")\n" +
+                "public class " + name + " implements Runnable {public void run() {}}\n";
+    }
+
+    private static void delete(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path f : files.sorted(Collections.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(f);
+            }
+        }
+    }
+
+    /** Makes javac run further rounds, as other processors generating sources would. */
+    @SupportedAnnotationTypes("*")
+    private static final class GeneratingProcessor extends AbstractProcessor {
+
+        private int remaining;
+
+        GeneratingProcessor(int rounds) {
+            remaining = rounds;
+        }
+
+        @Override public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+            if (remaining > 0 && !roundEnv.processingOver()) {
+                String name = "Generated" + remaining--;
+                try (Writer w = processingEnv.getFiler().createSourceFile("gen." + name).openWriter()) {
+                    w.write(source("gen", name, -1));
+                } catch (IOException x) {
+                    throw new IllegalStateException(x);
+                }
+            }
+            return false;
+        }
+
+        @Override public SourceVersion getSupportedSourceVersion() {
+            return SourceVersion.latest();
+        }
+
+    }
+
+}
@@ -0,0 +1,20 @@
+package net.java.sezpoz.perftest;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import net.java.sezpoz.Indexable;
+
+/**
+ * Registration used by generated fixtures.
+ * Has runtime retention so that proxies may be compared to JDK annotation instances.
+ */
+@Indexable(type=Runnable.class, indexedBy="category")
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Entry {
+    int weight();
+    String category();
+    String[] tags() default {};
+}
@@ -0,0 +1,67 @@
+package net.java.sezpoz.perftest;
+
+import java.lang.reflect.Constructor;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import net.java.sezpoz.Index;
+import net.java.sezpoz.IndexItem;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Repeatedly creating fresh instances of indexed classes,
+ * via {@link IndexItem#factory} against plain reflection.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class FactoryBenchmark {
+
+    private URLClassLoader loader;
+    private List<Supplier<Runnable>> factories;
+    private List<Constructor<?>> constructors;
+
+    @Setup public void setUp() throws Exception {
+        loader = Fixture.get(1, 100).newLoader();
+        factories = new ArrayList<Supplier<Runnable>>();
+        constructors = new ArrayList<Constructor<?>>();
+        for (IndexItem<Entry,Runnable> item : Index.load(Entry.class, Runnable.class, loader)) {
+            factories.add(item.factory());
+            constructors.add(((Class<?>) item.element()).getConstructor());
+        }
+    }
+
+    @TearDown public void tearDown() throws Exception {
+        loader.close();
+        Index.clearCache();
+    }
+
+    @Benchmark public void factory(Blackhole bh) {
+        for (Supplier<Runnable> factory : factories) {
+            bh.consume(factory.get());
+        }
+    }
+
+    @Benchmark public void reflection(Blackhole bh) throws Exception {
+        for (Constructor<?> constructor : constructors) {
+            bh.consume(constructor.newInstance());
+        }
+    }
+
+}
@@ -0,0 +1,116 @@
+package net.java.sezpoz.perftest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import net.java.sezpoz.impl.Indexer;
+
+/**
+ * A set of generated JARs, each registering a number of {@link Entry} classes
+ * both with SezPoz and in {@code META-INF/services/java.lang.Runnable}.
+ * JARs are compiled once into {@code -Dsezpoz.fixtures=target/fixtures} and reused by later forks.
+ */
+final class Fixture {
+
+    /** number of categories {@link Entry#category} is spread over */
+    static final int CATEGORIES = 10;
+
+    private final URL[] jars;
+
+    private Fixture(URL[] jars) {
+        this.jars = jars;
+    }
+
+    /**
+     * @return a fresh loader over the fixture JARs, with nothing yet loaded from them
+     */
+    URLClassLoader newLoader() {
+        return new URLClassLoader(jars, Fixture.class.getClassLoader());
+    }
+
+    static synchronized Fixture get(int jarCount, int entriesPerJar) throws IOException {
+        File dir = new File(System.getProperty("sezpoz.fixtures", "target/fixtures"), jarCount + "x" + entriesPerJar);
+        URL[] jars = new URL[jarCount];
+        for (int i = 0; i < jarCount; i++) {
+            File jar = new File(dir, "fixture" + i + ".jar");
+            if (!jar.isFile()) {
+                build(jar, "fixture" + i, entriesPerJar);
+            }
+            jars[i] = jar.toURI().toURL();
+        }
+        return new Fixture(jars);
+    }
+
+    private static void build(File jar, String pkg, int entries) throws IOException {
+        Path work = Files.createTempDirectory("sezpoz-fixture");
+        try {
+            Path src = work.resolve("src").resolve(pkg).resolve("Impls.java");
+            Path classes = work.resolve("classes");
+            Files.createDirectories(src.getParent());
+            Files.createDirectories(classes);
+            StringBuilder b = new StringBuilder("package ").append(pkg).append(";\npublic class Impls {\n");
+            List<String> services = new ArrayList<String>();
+            for (int i = 0; i < entries; i++) {
+                b.append("    @net.java.sezpoz.perftest.Entry(weight=").append(i)
+                        .append(", category=\"c").append(i % CATEGORIES)
+                        .append("\", tags={\"t").append(i % 3).append("\"})")
+                        .append(" public static class Impl").append(i)
+                        .append(" implements Runnable {public void run() {}}\n");
+                services.add(pkg + ".Impls$Impl" + i);
+            }
+            b.append("}\n");
+            Files.write(src, b.toString().getBytes(StandardCharsets.UTF_8));
+            JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+            StringWriter log = new StringWriter();
+            try (StandardJavaFileManager fm = javac.getStandardFileManager(null, null, StandardCharsets.UTF_8)) {
+                Iterable<? extends JavaFileObject> units = fm.getJavaFileObjects(src.toFile());
+                JavaCompiler.CompilationTask task = javac.getTask(new PrintWriter(log), fm, null,
+                        Arrays.asList("-classpath", System.getProperty("java.class.path"), "-d", classes.toString(), "-Asezpoz.quiet=true"),
+                        null, units);
+                task.setProcessors(Collections.singleton(new Indexer()));
+                if (!task.call()) {
+                    throw new IOException("could not compile fixture:\n" + log);
+                }
+            }
+            Path serviceFile = classes.resolve("META-INF/services/java.lang.Runnable");
+            Files.createDirectories(serviceFile.getParent());
+            Files.write(serviceFile, services, StandardCharsets.UTF_8);
+            jar.getParentFile().mkdirs();
+            File tmp = new File(jar.getPath() + ".tmp");
+            try (JarOutputStream jos = new JarOutputStream(new FileOutputStream(tmp));
+                 Stream<Path> files = Files.walk(classes)) {
+                for (Path f : files.filter(Files::isRegularFile).sorted().collect(Collectors.toList())) {
+                    jos.putNextEntry(new JarEntry(classes.relativize(f).toString().replace(File.separatorChar, '/')));
+                    Files.copy(f, jos);
+                }
+            }
+            Files.move(tmp.toPath(), jar.toPath());
+        } finally {
+            try (Stream<Path> files = Files.walk(work)) {
+                for (Path f : files.sorted(Collections.reverseOrder()).collect(Collectors.toList())) {
+                    Files.delete(f);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,91 @@
+package net.java.sezpoz.perftest;
+
+import java.net.URLClassLoader;
+import java.util.ServiceLoader;
+import java.util.concurrent.TimeUnit;
+import net.java.sezpoz.Index;
+import net.java.sezpoz.IndexItem;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Loading an index with a warm class loader, scaling by number of JARs and of entries in each.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class IterationBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int jars;
+
+    @Param({"10", "100"})
+    public int entries;
+
+    private URLClassLoader loader;
+
+    @Setup public void setUp() throws Exception {
+        loader = Fixture.get(jars, entries).newLoader();
+    }
+
+    @TearDown public void tearDown() throws Exception {
+        loader.close();
+        Index.clearCache();
+    }
+
+    /** Opens the index and reads the name of every item. */
+    @Benchmark public void iterate(Blackhole bh) {
+        for (IndexItem<Entry,Runnable> item : Index.load(Entry.class, Runnable.class, loader)) {
+            bh.consume(item.className());
+        }
+    }
+
+    /** Selects items by one annotation attribute. */
+    @Benchmark public int filterByAttribute() {
+        int count = 0;
+        for (IndexItem<Entry,Runnable> item : Index.load(Entry.class, Runnable.class, loader)) {
+            if (item.annotation().category().equals("c3")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** Selects the same items through the attribute index. */
+    @Benchmark public int where() {
+        int count = 0;
+        for (IndexItem<Entry,Runnable> item : Index.load(Entry.class, Runnable.class, loader).where("category", "c3")) {
+            count++;
+        }
+        return count;
+    }
+
+    /** Creates every registered instance; classes are already loaded after warmup. */
+    @Benchmark public void instantiate(Blackhole bh) throws InstantiationException {
+        for (IndexItem<Entry,Runnable> item : Index.load(Entry.class, Runnable.class, loader)) {
+            bh.consume(item.instance());
+        }
+    }
+
+    /** Baseline: the same registrations found via {@code META-INF/services}. */
+    @Benchmark public void serviceLoader(Blackhole bh) {
+        for (Runnable r : ServiceLoader.load(Runnable.class, loader)) {
+            bh.consume(r);
+        }
+    }
+
+}
@@ -1,5 +0,0 @@
-package using_serviceloader;
-public interface DemoService {
-    int type();
-    void run();
-}
@@ -33,31 +33,124 @@
 package net.java.sezpoz;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Enumeration;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.RandomAccess;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import net.java.sezpoz.impl.IndexFile;
 import net.java.sezpoz.impl.Indexer;
+import net.java.sezpoz.impl.Registry;
 import net.java.sezpoz.impl.SerAnnotatedElement;
 
 /**
  * Represents an index of a single annotation.
- * Indices are <em>not</em> automatically cached
- * (but reading them should be pretty cheap anyway).
+ * Parsed index resources are cached process-wide (up to {@code -Dnet.java.sezpoz.Index.cacheSize=1000} of them)
+ * and reused for as long as the file or JAR they came from is unmodified.
+ * If {@code -Dnet.java.sezpoz.Index.cacheResources=true} is set,
+ * the list of resources found in a given class loader is cached as well,
+ * in which case {@link #clearCache(ClassLoader)} must be called if the loader's contents change.
+ * Pass {@code -Dnet.java.sezpoz.Index.map=true} to memory-map index files in classes directories rather than copy them,
+ * decoding from the mapping on demand; do not do so
+ * if such files may be rewritten in place while items loaded from them are still in use,
+ * or on Windows where a mapped file cannot be replaced until it is garbage collected.
+ * If every JAR registering items was built with {@code -Asezpoz.aggregate=true},
+ * {@code -Dnet.java.sezpoz.Index.aggregatesOnly=true} may be set to find index resources via the aggregated indices alone,
+ * rather than asking the class loader to search all JARs for each annotation;
+ * items in JARs without an aggregated index are then not found.
+ * If the annotation was processed with {@code -Asezpoz.registry=true}, and the index is loaded from the annotation's own class loader,
+ * items are taken from the generated {@link Registry} class rather than from index resources,
+ * and instances are created by calling constructors, methods, or fields directly;
+ * pass {@code -Dnet.java.sezpoz.Index.registry=false} to ignore it.
+ * The registry is also ignored unless the only index resource of the annotation is next to it,
+ * since other JARs or directories may then register further items, or a registry of their own.
+ * While a JDK Flight Recorder recording is running, index loading is reported as events
+ * in the SezPoz category, such as {@code net.java.sezpoz.IndexItemInstantiate};
+ * pass {@code -Dnet.java.sezpoz.Index.jfr=false} to suppress them.
  * @param <A> the type of annotation to load
  * @param <I> the type of instance which will be created
  */
 public final class Index<A extends Annotation,I> implements Iterable<IndexItem<A,I>> {
 
     private static final Logger LOGGER = Logger.getLogger(Index.class.getName());
+    /** characteristics of {@link #spliterator} */
+    private static final int SPLITERATOR_CHARACTERISTICS = Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL | Spliterator.IMMUTABLE;
+
+    /** generated registry of each annotation type, or null if there is none */
+    private static final ClassValue<Registry> REGISTRIES = new ClassValue<Registry>() {
+        @Override protected Registry computeValue(Class<?> annotation) {
+            if ("false".equals(System.getProperty(Index.class.getName() + ".registry"))) {
+                return null;
+            }
+            ClassLoader loader = annotation.getClassLoader();
+            if (loader == null) {
+                return null;
+            }
+            try {
+                Class<?> c = Class.forName(annotation.getName() + Registry.SUFFIX, true, loader);
+                Registry registry = c.asSubclass(Registry.class).getConstructor().newInstance();
+                String resource = Indexer.METAINF_ANNOTATIONS + annotation.getName();
+                List<URL> indices = Collections.list(loader.getResources(resource));
+                URL location = registry.location();
+                if (indices.size() != 1 || location == null ||
+                        !container(indices.get(0), resource).equals(container(location, c.getName().replace('.', '/') + ".class"))) {
+                    LOGGER.log(Level.FINE, "Ignoring {0} from {1} since the annotation is indexed in {2}", new Object[] {c.getName(), location, indices});
+                    return null;
+                }
+                LOGGER.log(Level.FINE, "Using {0}", c.getName());
+                return registry;
+            } catch (ClassNotFoundException x) {
+                return null;
+            } catch (Exception | LinkageError x) {
+                LOGGER.log(Level.WARNING, "Could not load registry of " + annotation.getName(), x);
+                return null;
+            }
+        }
+    };
+    /**
+     * @return the URL of the JAR or directory containing a resource, as a string, or the whole URL if not found there
+     */
+    private static String container(URL resource, String name) {
+        String u = resource.toExternalForm();
+        return u.endsWith(name) ? u.substring(0, u.length() - name.length()) : u;
+    }
+
+    /** {@link Registry#create}, of type {@code (Registry,int)Object} */
+    private static final MethodHandle CREATE;
+
+    static {
+        try {
+            CREATE = MethodHandles.publicLookup().findVirtual(Registry.class, "create", MethodType.methodType(Object.class, int.class));
+        } catch (ReflectiveOperationException x) {
+            throw new ExceptionInInitializerError(x);
+        }
+        IndexListeners.installJfr();
+    }
 
     /**
      * Load an index for a given annotation type.
@@ -82,17 +175,315 @@ public final class Index<A extends Annotation,I> implements Iterable<IndexItem<A
      *                                  or the instance type is not equal to or a supertype of the annotation's actual {@link Indexable#type}
      */
     public static <A extends Annotation,I> Index<A,I> load(Class<A> annotation, Class<I> instanceType, ClassLoader loader) throws IllegalArgumentException {
-        return new Index<A,I>(annotation, instanceType, loader);
+        return new Index<A,I>(annotation, instanceType, loader, null);
+    }
+
+    /**
+     * Load an index for a given annotation type, reading all index resources concurrently.
+     * Useful when a loader has many JARs each registering the same annotation.
+     * Iteration order and handling of duplicates is the same as for {@link #load(Class, Class, ClassLoader)}.
+     * @param annotation the type of annotation to find
+     * @param instanceType the type of instance to be created (use {@link Void} if all instances will be null)
+     * @param loader a class loader in which to find the index and any annotated classes
+     * @param executor used to read and parse each index resource when an iterator is first used
+     * @return an index of all elements known to be annotated with it
+     * @throws IllegalArgumentException if the annotation type is not marked with {@link Indexable}
+     *                                  or the instance type is not equal to or a supertype of the annotation's actual {@link Indexable#type}
+     */
+    public static <A extends Annotation,I> Index<A,I> loadParallel(Class<A> annotation, Class<I> instanceType, ClassLoader loader, Executor executor) throws IllegalArgumentException {
+        return new Index<A,I>(annotation, instanceType, loader, executor);
+    }
+
+    /**
+     * Registers a listener to be told about all subsequent index loading in this JVM.
+     * @param listener a listener
+     */
+    public static void addListener(IndexListener listener) {
+        IndexListeners.add(listener);
+    }
+
+    /**
+     * Unregisters a listener.
+     * @param listener a listener previously passed to {@link #addListener}
+     */
+    public static void removeListener(IndexListener listener) {
+        IndexListeners.remove(listener);
+    }
+
+    /**
+     * Discards all cached index data.
+     */
+    public static void clearCache() {
+        IndexCache.clear();
+    }
+
+    /**
+     * Discards index data cached for a given class loader, such as after its contents have changed.
+     * @param loader a class loader previously passed to {@link #load(Class, Class, ClassLoader)}
+     */
+    public static void clearCache(ClassLoader loader) {
+        IndexCache.clear(loader);
     }
 
     private final Class<A> annotation;
     private final Class<I> instanceType;
     private final ClassLoader loader;
+    private final Executor executor;
+    /** restrictions from {@link #where} and {@link #lookup} */
+    private final List<Filter> filters;
+
+    private Index(Class<A> annotation, Class<I> instance, ClassLoader loader, Executor executor) {
+        this(annotation, instance, loader, executor, Collections.<Filter>emptyList());
+    }
 
-    private Index(Class<A> annotation, Class<I> instance, ClassLoader loader) {
+    private Index(Class<A> annotation, Class<I> instance, ClassLoader loader, Executor executor, List<Filter> filters) {
         this.annotation = annotation;
         this.instanceType = instance;
         this.loader = loader;
+        this.executor = executor;
+        this.filters = filters;
+    }
+
+    /**
+     * Restricts the index to items whose annotation has a given attribute value.
+     * If the attribute is named in {@link Indexable#indexedBy}, matching items are looked up directly;
+     * otherwise, or for indices written by older versions of SezPoz, each item's values are checked.
+     * Either way no proxy is created for items which do not match.
+     * If the same element is registered more than once with different values,
+     * the registration found may differ from that found by an unrestricted index.
+     * @param attribute the name of a method of the annotation type
+     * @param value the value to look for: a primitive wrapper, {@link String}, enum constant, or {@link Class};
+     *              for an array attribute, any one element
+     * @return a view of this index which may be restricted further
+     * @throws IllegalArgumentException if the annotation has no such attribute
+     */
+    public Index<A,I> where(String attribute, Object value) throws IllegalArgumentException {
+        Method method;
+        try {
+            method = annotation.getMethod(attribute);
+        } catch (NoSuchMethodException x) {
+            throw new IllegalArgumentException(annotation.getName() + " has no attribute " + attribute, x);
+        }
+        return restrict(new AttributeFilter(attribute, value, method.getDefaultValue()));
+    }
+
+    /**
+     * Restricts the index to items registered on a given class or its members.
+     * Indices are sorted by class name, so matching items are found by binary search
+     * without decoding the others; indices written by older versions of SezPoz are scanned instead.
+     * JARs with an aggregated index whose summary rules out the class are skipped without reading their index.
+     * The same caveat about duplicate registrations applies as for {@link #where}.
+     * @param className a class name (format e.g. "x.y.Z$I")
+     * @return a view of this index which may be restricted further
+     */
+    public Index<A,I> lookup(String className) {
+        return restrict(new ClassNameFilter(className, false));
+    }
+
+    /**
+     * Restricts the index to items registered on classes, or their members, whose names start with a given prefix.
+     * Works like {@link #lookup}.
+     * @param classNamePrefix a prefix of class names, such as a package name followed by {@code .}
+     * @return a view of this index which may be restricted further
+     */
+    public Index<A,I> lookupPrefix(String classNamePrefix) {
+        return restrict(new ClassNameFilter(classNamePrefix, true));
+    }
+
+    private Index<A,I> restrict(Filter filter) {
+        List<Filter> _filters = new ArrayList<Filter>(filters);
+        _filters.add(filter);
+        return new Index<A,I>(annotation, instanceType, loader, executor, _filters);
+    }
+
+    /**
+     * Finds the index resources for the annotation, in precedence order.
+     */
+    private List<URL> resources() throws IOException {
+        if (LOGGER.isLoggable(Level.FINE)) {
+            String urls;
+            if (loader instanceof URLClassLoader) {
+                urls = " " + Arrays.toString(((URLClassLoader) loader).getURLs());
+            } else {
+                urls = "";
+            }
+            LOGGER.log(Level.FINE, "Searching for indices of {0} in {1}{2}", new Object[] {annotation, loader, urls});
+        }
+        IndexListeners.Measurement m = IndexListeners.begin(IndexListeners.Kind.SCAN);
+        List<URL> resources = IndexCache.resources(loader, Indexer.METAINF_ANNOTATIONS + annotation.getName());
+        if (m != null) {
+            IndexListeners.resourcesFound(m, annotation.getName(), loader, resources.size());
+        }
+        return resources;
+    }
+
+    /**
+     * Loads the elements of one index resource which match {@link #filters}.
+     */
+    private List<SerAnnotatedElement> load(URL resource) throws IOException {
+        for (Filter filter : filters) {
+            if (!filter.mightMatch(loader, resource, annotation.getName())) {
+                LOGGER.log(Level.FINER, "Skipping {0}", resource);
+                return Collections.emptyList();
+            }
+        }
+        IndexListeners.Measurement m = IndexListeners.begin(IndexListeners.Kind.LOAD);
+        List<SerAnnotatedElement> selected = select(IndexCache.elements(loader, resource, annotation.getName()));
+        if (m != null) {
+            IndexListeners.resourceLoaded(m, annotation.getName(), resource, selected.size());
+        }
+        return selected;
+    }
+
+    /**
+     * Applies {@link #filters} to the elements of one index resource.
+     */
+    private List<SerAnnotatedElement> select(List<SerAnnotatedElement> elements) throws IOException {
+        if (filters.isEmpty()) {
+            return elements;
+        }
+        int[] positions = null;
+        List<Filter> unindexed = new ArrayList<Filter>();
+        for (Filter filter : filters) {
+            int[] found = filter.find(elements);
+            if (found == null) {
+                unindexed.add(filter);
+            } else if (positions == null) {
+                positions = found;
+            } else {
+                positions = intersect(positions, found);
+            }
+        }
+        List<SerAnnotatedElement> selected = new ArrayList<SerAnnotatedElement>();
+        if (positions != null) {
+            for (int position : positions) {
+                SerAnnotatedElement el = elements.get(position);
+                if (matches(el, unindexed)) {
+                    selected.add(el);
+                }
+            }
+        } else {
+            for (SerAnnotatedElement el : elements) {
+                if (matches(el, unindexed)) {
+                    selected.add(el);
+                }
+            }
+        }
+        return selected;
+    }
+
+    private static boolean matches(SerAnnotatedElement el, List<Filter> filters) {
+        for (Filter filter : filters) {
+            if (!filter.matches(el)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int count = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[count++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * A restriction on items in the index.
+     */
+    private static abstract class Filter {
+        /**
+         * Checks whether a resource might have any matching elements, before loading it.
+         * @return false if it definitely has none
+         */
+        boolean mightMatch(ClassLoader loader, URL resource, String annotation) throws IOException {
+            return true;
+        }
+        /**
+         * Finds matching elements using some secondary index.
+         * @return ascending positions of matching elements, or null if {@link #matches} must be used instead
+         */
+        abstract int[] find(List<SerAnnotatedElement> elements) throws IOException;
+        abstract boolean matches(SerAnnotatedElement el);
+    }
+
+    private static final class AttributeFilter extends Filter {
+        private final String attribute;
+        private final Object value;
+        /** {@link IndexFile#keys} of {@link #value} */
+        private final Set<String> keys;
+        /** live default value of the attribute, or null */
+        private final Object defaultValue;
+        AttributeFilter(String attribute, Object value, Object defaultValue) {
+            this.attribute = attribute;
+            this.value = value;
+            keys = new HashSet<String>(IndexFile.keys(value));
+            this.defaultValue = defaultValue;
+        }
+        @Override int[] find(List<SerAnnotatedElement> elements) throws IOException {
+            return IndexFile.lookup(elements, attribute, value);
+        }
+        @Override boolean matches(SerAnnotatedElement el) {
+            Object v = el.values().get(attribute);
+            if (v == null) {
+                v = defaultValue;
+            }
+            return v != null && !Collections.disjoint(keys, IndexFile.keys(v));
+        }
+    }
+
+    private static final class ClassNameFilter extends Filter {
+        private final String className;
+        private final boolean prefix;
+        ClassNameFilter(String className, boolean prefix) {
+            this.className = className;
+            this.prefix = prefix;
+        }
+        @Override boolean mightMatch(ClassLoader loader, URL resource, String annotation) throws IOException {
+            return prefix || IndexCache.mightContain(loader, resource, annotation, className);
+        }
+        @Override int[] find(List<SerAnnotatedElement> elements) throws IOException {
+            return IndexFile.lookupClassName(elements, className, prefix);
+        }
+        @Override boolean matches(SerAnnotatedElement el) {
+            return prefix ? el.className.startsWith(className) : el.className.equals(className);
+        }
+    }
+
+    /**
+     * Creates the instances of all items in the index concurrently.
+     * Useful when many items have slow class initialization.
+     * The index itself is read on the calling thread; only {@link IndexItem#instance} is called from the executor,
+     * and its result is cached by each item as usual.
+     * @param executor used to load classes and create instances, one task per item
+     * @return a future instance for each item, in iteration order,
+     *         completed exceptionally with {@link InstantiationException} if that item could not be created
+     * @throws IndexError if the index could not be read
+     */
+    public Map<IndexItem<A,I>,CompletableFuture<I>> instantiateAll(Executor executor) throws IndexError {
+        Map<IndexItem<A,I>,CompletableFuture<I>> futures = new LinkedHashMap<IndexItem<A,I>,CompletableFuture<I>>();
+        for (IndexItem<A,I> item : this) {
+            CompletableFuture<I> future = new CompletableFuture<I>();
+            futures.put(item, future);
+            executor.execute(() -> {
+                try {
+                    future.complete(item.instance());
+                } catch (InstantiationException | RuntimeException x) {
+                    future.completeExceptionally(x);
+                }
+            });
+        }
+        return futures;
     }
 
     /**
@@ -102,7 +493,264 @@ public final class Index<A extends Annotation,I> implements Iterable<IndexItem<A
      * @return an iterator over items in the index
      */
     public Iterator<IndexItem<A,I>> iterator() {
-        return new LazyIndexIterator();
+        Registry registry = loader == annotation.getClassLoader() ? REGISTRIES.get(annotation) : null;
+        return registry != null ? new RegistryIterator(registry) : new LazyIndexIterator();
+    }
+
+    /**
+     * Splits the items in the index, for use in parallel streams.
+     * The index resources are found when this is called, but each is read only when first traversed or split.
+     * A spliterator over a single resource, or over a generated registry with no restrictions, is sized and splits by position.
+     * Where there are several resources, splitting takes off the first remaining resource,
+     * checked against those before it for duplicate items;
+     * sequential traversal reads the remaining resources lazily as in {@link #iterator},
+     * so a short-circuiting operation reads no more than it needs.
+     * Calls to spliterator methods may fail with {@link IndexError}.
+     * @return a spliterator which is ordered and reports distinct and non-null items
+     */
+    @Override public Spliterator<IndexItem<A,I>> spliterator() {
+        Registry registry = loader == annotation.getClassLoader() ? REGISTRIES.get(annotation) : null;
+        if (registry != null) {
+            List<SerAnnotatedElement> elements = registry.elements();
+            return new RangeSpliterator(elements, 0, elements.size(), registry.location(), CREATE.bindTo(registry));
+        }
+        List<URL> resources;
+        try {
+            resources = resources();
+        } catch (IOException x) {
+            throw new IndexError(x);
+        }
+        switch (resources.size()) {
+        case 0:
+            return Spliterators.emptySpliterator();
+        case 1:
+            return new RangeSpliterator(resources.get(0));
+        default:
+            return new ResourcesSpliterator(resources);
+        }
+    }
+
+    /**
+     * Stream of all items in the index.
+     * Nothing is read until a terminal operation begins.
+     * The stream may be made {@link Stream#parallel}, typically to call {@link IndexItem#instance} concurrently.
+     * @return a sequential stream over the same items as {@link #iterator}
+     * @see #spliterator
+     */
+    public Stream<IndexItem<A,I>> stream() {
+        return StreamSupport.stream(this::spliterator, SPLITERATOR_CHARACTERISTICS, false);
+    }
+
+    /**
+     * Iterator over the items of a generated registry, which reads no resources.
+     */
+    private final class RegistryIterator implements Iterator<IndexItem<A,I>> {
+
+        private final List<SerAnnotatedElement> elements;
+        /** {@link #CREATE} bound to the registry */
+        private final MethodHandle create;
+        private final URL location;
+        private int position;
+        private IndexItem<A,I> next;
+
+        RegistryIterator(Registry registry) {
+            elements = registry.elements();
+            create = CREATE.bindTo(registry);
+            location = registry.location();
+        }
+
+        public boolean hasNext() {
+            while (next == null && position < elements.size()) {
+                SerAnnotatedElement el = elements.get(position);
+                if (matches(el, filters)) {
+                    next = new IndexItem<A,I>(el, annotation, instanceType, loader, location, MethodHandles.insertArguments(create, 0, position));
+                }
+                position++;
+            }
+            return next != null;
+        }
+
+        public IndexItem<A,I> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            IndexItem<A,I> _next = next;
+            next = null;
+            return _next;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+    }
+
+    /**
+     * Spliterator over a range of elements from one index resource or a generated registry.
+     */
+    private final class RangeSpliterator implements Spliterator<IndexItem<A,I>> {
+
+        /** resource to load {@link #elements} from when first needed, or null once loaded */
+        private URL pending;
+        private List<SerAnnotatedElement> elements;
+        private int position;
+        private int end;
+        /** index resource, or registry class location */
+        private final URL location;
+        /** {@link #CREATE} bound to the registry, or null for an index resource */
+        private final MethodHandle create;
+
+        RangeSpliterator(URL resource) {
+            pending = resource;
+            location = resource;
+            create = null;
+        }
+
+        RangeSpliterator(List<SerAnnotatedElement> elements, int position, int end, URL location, MethodHandle create) {
+            this.elements = elements;
+            this.position = position;
+            this.end = end;
+            this.location = location;
+            this.create = create;
+        }
+
+        private void load() throws IndexError {
+            if (pending != null) {
+                try {
+                    List<SerAnnotatedElement> loaded = Index.this.load(pending);
+                    elements = loaded instanceof RandomAccess ? loaded : new ArrayList<SerAnnotatedElement>(loaded);
+                } catch (IOException x) {
+                    throw new IndexError(x);
+                }
+                end = elements.size();
+                pending = null;
+            }
+        }
+
+        /** Elements from a registry are still to be checked against {@link #filters}. */
+        private boolean filtered() {
+            return create != null && !filters.isEmpty();
+        }
+
+        @Override public boolean tryAdvance(Consumer<? super IndexItem<A,I>> action) {
+            load();
+            while (position < end) {
+                SerAnnotatedElement el = elements.get(position);
+                int p = position++;
+                if (create == null) {
+                    try {
+                        action.accept(new IndexItem<A,I>(el, annotation, instanceType, loader, location));
+                    } catch (IOException x) {
+                        throw new IndexError(x);
+                    }
+                    return true;
+                } else if (matches(el, filters)) {
+                    action.accept(new IndexItem<A,I>(el, annotation, instanceType, loader, location, MethodHandles.insertArguments(create, 0, p)));
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override public Spliterator<IndexItem<A,I>> trySplit() {
+            load();
+            int middle = (position + end) >>> 1;
+            if (middle == position) {
+                return null;
+            }
+            RangeSpliterator prefix = new RangeSpliterator(elements, position, middle, location, create);
+            position = middle;
+            return prefix;
+        }
+
+        @Override public long estimateSize() {
+            load();
+            return end - position;
+        }
+
+        @Override public int characteristics() {
+            return filtered() ? SPLITERATOR_CHARACTERISTICS : SPLITERATOR_CHARACTERISTICS | Spliterator.SIZED | Spliterator.SUBSIZED;
+        }
+
+    }
+
+    /**
+     * Spliterator over several index resources, which may list the same elements.
+     */
+    private final class ResourcesSpliterator implements Spliterator<IndexItem<A,I>> {
+
+        private final List<URL> resources;
+        private int nextResource;
+        /** {@link SerAnnotatedElement#key} of items in resources before {@link #nextResource} */
+        private final Set<String> loadedMembers = new HashSet<String>();
+        /** once traversal has begun */
+        private LazyIndexIterator iterator;
+        /** once split down to the last resource */
+        private RangeSpliterator last;
+
+        ResourcesSpliterator(List<URL> resources) {
+            this.resources = resources;
+        }
+
+        /**
+         * Loads the next resource, without the elements found in earlier ones.
+         */
+        private RangeSpliterator take() throws IndexError {
+            URL resource = resources.get(nextResource++);
+            List<SerAnnotatedElement> elements = new ArrayList<SerAnnotatedElement>();
+            try {
+                for (SerAnnotatedElement el : load(resource)) {
+                    if (loadedMembers.add(el.key())) {
+                        elements.add(el);
+                    } else {
+                        LOGGER.log(Level.FINE, "Already loaded index item {0}", el);
+                        if (IndexListeners.active()) {
+                            IndexListeners.duplicateSkipped(annotation.getName(), resource, el.key());
+                        }
+                    }
+                }
+            } catch (IOException x) {
+                throw new IndexError(x);
+            }
+            return new RangeSpliterator(elements, 0, elements.size(), resource, null);
+        }
+
+        @Override public boolean tryAdvance(Consumer<? super IndexItem<A,I>> action) {
+            if (last != null) {
+                return last.tryAdvance(action);
+            }
+            if (iterator == null) {
+                iterator = new LazyIndexIterator(resources.subList(nextResource, resources.size()), loadedMembers);
+            }
+            if (!iterator.hasNext()) {
+                return false;
+            }
+            action.accept(iterator.next());
+            return true;
+        }
+
+        @Override public Spliterator<IndexItem<A,I>> trySplit() {
+            if (last != null) {
+                return last.trySplit();
+            }
+            if (iterator != null) {
+                return null;
+            }
+            if (nextResource == resources.size() - 1) {
+                last = take();
+                return last.trySplit();
+            }
+            return take();
+        }
+
+        @Override public long estimateSize() {
+            return last != null ? last.estimateSize() : Long.MAX_VALUE;
+        }
+
+        @Override public int characteristics() {
+            return last != null ? last.characteristics() : SPLITERATOR_CHARACTERISTICS;
+        }
+
     }
 
     /**
@@ -110,23 +758,30 @@ public final class Index<A extends Annotation,I> implements Iterable<IndexItem<A
      */
     private final class LazyIndexIterator implements Iterator<IndexItem<A,I>> {
 
-        private Enumeration<URL> resources;
-        private ObjectInputStream ois;
+        private List<URL> resources;
+        /** if parsing in parallel, results for each of {@link #resources} */
+        private List<Future<List<SerAnnotatedElement>>> parsed;
+        private int nextResource;
+        private Iterator<SerAnnotatedElement> elements;
         private URL resource;
         private IndexItem<A,I> next;
         private boolean end;
-        private final Set<String> loadedMembers = new HashSet<String>();
+        /**
+         * {@link SerAnnotatedElement#key} of items returned so far, to skip those found again in overlapping code sources;
+         * null if there is only one resource, since each index lists an element only once.
+         */
+        private Set<String> loadedMembers;
 
-        public LazyIndexIterator() {
-            if (LOGGER.isLoggable(Level.FINE)) {
-                String urls;
-                if (loader instanceof URLClassLoader) {
-                    urls = " " + Arrays.toString(((URLClassLoader) loader).getURLs());
-                } else {
-                    urls = "";
-                }
-                LOGGER.log(Level.FINE, "Searching for indices of {0} in {1}{2}", new Object[] {annotation, loader, urls});
-            }
+        LazyIndexIterator() {}
+
+        /**
+         * Continues after other resources.
+         * @param resources the remaining resources
+         * @param loadedMembers keys of items already returned from earlier resources
+         */
+        LazyIndexIterator(List<URL> resources, Set<String> loadedMembers) {
+            this.resources = resources;
+            this.loadedMembers = loadedMembers;
         }
 
         private void peek() throws IndexError {
@@ -138,32 +793,50 @@ public final class Index<A extends Annotation,I> implements Iterable<IndexItem<A
                     if (next != null || end) {
                         return;
                     }
-                    if (ois == null) {
+                    if (elements == null) {
                         if (resources == null) {
-                            resources = loader.getResources(Indexer.METAINF_ANNOTATIONS + annotation.getName());
+                            resources = resources();
+                            if (resources.size() > 1) {
+                                loadedMembers = new HashSet<String>();
+                            }
                         }
-                        if (!resources.hasMoreElements()) {
+                        if (executor != null && parsed == null) {
+                            parsed = new ArrayList<Future<List<SerAnnotatedElement>>>(resources.size());
+                            for (final URL r : resources) {
+                                FutureTask<List<SerAnnotatedElement>> task = new FutureTask<List<SerAnnotatedElement>>(() -> load(r));
+                                executor.execute(task);
+                                parsed.add(task);
+                            }
+                        }
+                        if (nextResource == resources.size()) {
                             // Exhausted all streams.
                             end = true;
                             return;
                         }
-                        resource = resources.nextElement();
-                        LOGGER.log(Level.FINE, "Loading index from {0}", resource);
-                        ois = new ObjectInputStream(resource.openStream());
+                        resource = resources.get(nextResource);
+                        if (parsed != null) {
+                            try {
+                                elements = parsed.get(nextResource).get().iterator();
+                            } catch (ExecutionException x) {
+                                throw x.getCause() instanceof Exception ? (Exception) x.getCause() : x;
+                            }
+                        } else {
+                            elements = load(resource).iterator();
+                        }
+                        nextResource++;
                     }
-                    SerAnnotatedElement el = (SerAnnotatedElement) ois.readObject();
-                    if (el == null) {
+                    if (!elements.hasNext()) {
                         // Skip to next stream.
-                        ois.close();
-                        ois = null;
+                        elements = null;
                         continue;
                     }
-                    String memberName = el.isMethod ? el.className + '#' + el.memberName + "()" :
-                        el.memberName != null ? el.className + '#' + el.memberName :
-                            el.className;
-                    if (!loadedMembers.add(memberName)) {
+                    SerAnnotatedElement el = elements.next();
+                    if (loadedMembers != null && !loadedMembers.add(el.key())) {
                         // Already encountered this element, so skip it.
                         LOGGER.log(Level.FINE, "Already loaded index item {0}", el);
+                        if (IndexListeners.active()) {
+                            IndexListeners.duplicateSkipped(annotation.getName(), resource, el.key());
+                        }
                         continue;
                     }
                     // XXX JRE #6865375 would make loader param accurate for duplicated modules
@@ -171,13 +844,6 @@ public final class Index<A extends Annotation,I> implements Iterable<IndexItem<A
                     break;
                 }
             } catch (Exception x) {
-                if (ois != null) {
-                    try {
-                        ois.close();
-                    } catch (IOException x2) {
-                        LOGGER.log(Level.WARNING, null, x2);
-                    }
-                }
                 throw new IndexError(x);
             }
         }
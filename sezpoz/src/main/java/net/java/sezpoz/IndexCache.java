@@ -0,0 +1,451 @@
+package net.java.sezpoz;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarEntry;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.java.sezpoz.impl.BloomFilter;
+import net.java.sezpoz.impl.IndexFile;
+import net.java.sezpoz.impl.Indexer;
+import net.java.sezpoz.impl.SerAnnotatedElement;
+
+/**
+ * Process-wide cache of parsed index resources.
+ * Parsed resources are kept in a bounded LRU map keyed by URL,
+ * and are only reused while the file or JAR they came from has the same timestamp and size.
+ * Lists of resources found by a class loader may optionally be kept as well,
+ * weakly keyed by the loader.
+ * Where a JAR also has an {@link Indexer#AGGREGATE_INDEX}, that is read once
+ * and used in place of each of its per-annotation resources which it matches,
+ * and its summary used to skip the JAR when looking up a class name it does not register.
+ * If all JARs are known to have such an index, per-annotation resources need not be looked for at all.
+ */
+final class IndexCache {
+
+    private static final Logger LOGGER = Logger.getLogger(IndexCache.class.getName());
+
+    /** maximum number of parsed resources to retain; 0 to disable */
+    private static final int SIZE = Integer.getInteger(Index.class.getName() + ".cacheSize", 1000);
+    /** whether to remember the results of {@link ClassLoader#getResources} */
+    private static final boolean CACHE_RESOURCES = Boolean.getBoolean(Index.class.getName() + ".cacheResources");
+    /**
+     * whether to memory-map index files loaded from directories rather than reading them via {@link URL#openStream};
+     * off by default, since entries decoded later would see the file if it were rewritten in place, as by a compiler
+     */
+    private static final boolean MAP = Boolean.getBoolean(Index.class.getName() + ".map");
+    /** whether to find per-annotation resources only via aggregated indices, rather than asking the loader for each */
+    private static final boolean AGGREGATES_ONLY = Boolean.getBoolean(Index.class.getName() + ".aggregatesOnly");
+
+    /** prefix of keys in {@link #parsed} recording that there is no such resource */
+    private static final String MISSING = "missing:";
+    private static final Map<String,Parsed> parsed = new LinkedHashMap<String,Parsed>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<String,Parsed> eldest) {
+            return size() > SIZE;
+        }
+    };
+    private static final Map<ClassLoader,Map<String,List<URL>>> resources = new WeakHashMap<ClassLoader,Map<String,List<URL>>>();
+    /** for each loader, aggregated indices keyed by the URL of the JAR or directory containing them */
+    private static final Map<ClassLoader,Map<String,URL>> aggregates = new WeakHashMap<ClassLoader,Map<String,URL>>();
+
+    private IndexCache() {}
+
+    /**
+     * Finds all resources of a given name in a loader.
+     */
+    static List<URL> resources(ClassLoader loader, String name) throws IOException {
+        if (AGGREGATES_ONLY && SIZE > 0 && name.startsWith(Indexer.METAINF_ANNOTATIONS)) {
+            return resourcesFromAggregates(loader, name.substring(Indexer.METAINF_ANNOTATIONS.length()));
+        }
+        if (!CACHE_RESOURCES) {
+            return Collections.list(loader.getResources(name));
+        }
+        synchronized (IndexCache.class) {
+            Map<String,List<URL>> byName = resources.get(loader);
+            if (byName != null) {
+                List<URL> urls = byName.get(name);
+                if (urls != null) {
+                    return urls;
+                }
+            }
+        }
+        List<URL> urls = Collections.unmodifiableList(Collections.list(loader.getResources(name)));
+        synchronized (IndexCache.class) {
+            Map<String,List<URL>> byName = resources.get(loader);
+            if (byName == null) {
+                byName = new HashMap<String,List<URL>>();
+                resources.put(loader, byName);
+            }
+            byName.put(name, urls);
+        }
+        return urls;
+    }
+
+    /**
+     * Lists the per-annotation resources accompanying those aggregated indices which mention an annotation,
+     * in the loader's order, without asking the loader for them.
+     */
+    static List<URL> resourcesFromAggregates(ClassLoader loader, String annotation) throws IOException {
+        List<URL> urls = new ArrayList<URL>();
+        for (Map.Entry<String,URL> entry : aggregates(loader).entrySet()) {
+            if (parse(entry.getValue(), Aggregate::new, annotation).sections.containsKey(annotation)) {
+                urls.add(new URL(entry.getKey() + Indexer.METAINF_ANNOTATIONS + annotation));
+            }
+        }
+        return urls;
+    }
+
+    /**
+     * Checks whether one index resource might register a given class or its members.
+     * @return false only if the aggregated index next to it rules this out
+     */
+    static boolean mightContain(ClassLoader loader, URL resource, String annotation, String className) throws IOException {
+        Aggregate aggregate = aggregate(loader, resource, annotation);
+        return aggregate == null || aggregate.summary.mightContain(BloomFilter.key(annotation, className));
+    }
+
+    /**
+     * Reads the elements for an annotation from one index resource,
+     * or from the aggregated index next to it if there is one.
+     */
+    static List<SerAnnotatedElement> elements(ClassLoader loader, URL resource, String annotation) throws IOException {
+        Aggregate aggregate = aggregate(loader, resource, annotation);
+        if (aggregate != null) {
+            List<SerAnnotatedElement> elements = aggregate.elements(annotation);
+            if (elements != null) {
+                return elements;
+            }
+        }
+        return parse(resource, IndexFile::read, annotation);
+    }
+
+    /**
+     * Finds the aggregated index in the same JAR or directory as a per-annotation resource.
+     * Unless the loader's resources may be cached, looks for it directly in that local JAR or directory,
+     * rather than asking the loader for all aggregated indices again for each resource.
+     * @return null if there is none, or caching is disabled
+     */
+    private static Aggregate aggregate(ClassLoader loader, URL resource, String annotation) throws IOException {
+        String u = resource.toExternalForm();
+        String suffix = Indexer.METAINF_ANNOTATIONS + annotation;
+        if (SIZE > 0 && u.endsWith(suffix)) {
+            String container = u.substring(0, u.length() - suffix.length());
+            if (CACHE_RESOURCES) {
+                URL aggregate = aggregates(loader).get(container);
+                if (aggregate != null) {
+                    return current(parse(aggregate, Aggregate::new, annotation), aggregate, resource, annotation);
+                }
+            } else if (Stamp.file(resource) != null) {
+                URL aggregate = new URL(container + Indexer.AGGREGATE_INDEX);
+                // Most JARs have none, so remember that until the JAR or directory changes.
+                String missingKey = MISSING + aggregate.toExternalForm();
+                Stamp stamp = Stamp.ofMissing(aggregate);
+                synchronized (IndexCache.class) {
+                    Parsed p = parsed.get(missingKey);
+                    if (p != null && p.stamp.equals(stamp)) {
+                        return null;
+                    }
+                }
+                try {
+                    return current(parse(aggregate, Aggregate::new, annotation), aggregate, resource, annotation);
+                } catch (FileNotFoundException | NoSuchFileException x) {
+                    if (stamp != null) {
+                        synchronized (IndexCache.class) {
+                            parsed.put(missingKey, new Parsed(stamp, null));
+                        }
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks that the section of an aggregated index matches the per-annotation resource next to it,
+     * which may have been rewritten since without the aggregate.
+     * @return the aggregate, or null if it cannot be used for this resource
+     */
+    private static Aggregate current(Aggregate aggregate, URL aggregateResource, URL resource, String annotation) throws IOException {
+        Boolean current = aggregate.current.get(annotation);
+        if (current == null) {
+            ByteBuffer section = aggregate.sections.get(annotation);
+            if (section == null) {
+                current = false;
+            } else if (resource.getProtocol().equals("jar")) {
+                // The JAR's central directory lists the length and CRC-32 of each entry, so nothing need be read.
+                URLConnection connection = resource.openConnection();
+                JarEntry entry = connection instanceof JarURLConnection ? ((JarURLConnection) connection).getJarEntry() : null;
+                current = entry != null && entry.getSize() == section.remaining() && entry.getCrc() == aggregate.checksums.get(annotation);
+                // Valid as long as the aggregate itself, since both are in the same JAR.
+                aggregate.current.put(annotation, current);
+            } else {
+                // Files in a directory may change separately, so check each time; written before the aggregate, if with it.
+                File f = Stamp.file(resource);
+                File a = Stamp.file(aggregateResource);
+                current = f != null && a != null && f.length() == section.remaining() && f.lastModified() <= a.lastModified();
+            }
+            if (!current) {
+                LOGGER.log(Level.FINE, "Not using {0} for {1}, which does not match it", new Object[] {aggregateResource, resource});
+            }
+        }
+        return current ? aggregate : null;
+    }
+
+    /**
+     * Reads the elements in one index resource, reusing an earlier result if still valid.
+     */
+    static List<SerAnnotatedElement> elements(URL resource) throws IOException {
+        return parse(resource, IndexFile::read, null);
+    }
+
+    /**
+     * Finds the aggregated indices in a loader, remembering them only if {@link #CACHE_RESOURCES}.
+     */
+    private static Map<String,URL> aggregates(ClassLoader loader) throws IOException {
+        synchronized (IndexCache.class) {
+            Map<String,URL> byContainer = aggregates.get(loader);
+            if (byContainer != null) {
+                return byContainer;
+            }
+        }
+        Map<String,URL> byContainer = new LinkedHashMap<String,URL>();
+        for (URL aggregate : Collections.list(loader.getResources(Indexer.AGGREGATE_INDEX))) {
+            String u = aggregate.toExternalForm();
+            if (u.endsWith(Indexer.AGGREGATE_INDEX)) {
+                byContainer.put(u.substring(0, u.length() - Indexer.AGGREGATE_INDEX.length()), aggregate);
+            }
+        }
+        if (CACHE_RESOURCES) {
+            synchronized (IndexCache.class) {
+                aggregates.put(loader, byContainer);
+            }
+        }
+        return byContainer;
+    }
+
+    private interface Parser<T> {
+        T parse(ByteBuffer buf) throws IOException;
+    }
+
+    /**
+     * @param annotation name of the annotation being loaded, for {@link IndexListener#resourceRead}, or null
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T parse(URL resource, Parser<T> parser, String annotation) throws IOException {
+        String key = resource.toExternalForm();
+        Stamp stamp = SIZE > 0 ? Stamp.of(resource) : null;
+        if (stamp != null) {
+            synchronized (IndexCache.class) {
+                Parsed p = parsed.get(key);
+                if (p != null && p.stamp.equals(stamp)) {
+                    LOGGER.log(Level.FINER, "Reusing cached index from {0}", resource);
+                    return (T) p.value;
+                }
+            }
+        }
+        LOGGER.log(Level.FINE, "Loading index from {0}", resource);
+        IndexListeners.Measurement m = IndexListeners.begin(IndexListeners.Kind.READ);
+        ByteBuffer buf = read(resource);
+        long bytes = buf.remaining();
+        T value = parser.parse(buf);
+        if (m != null) {
+            IndexListeners.resourceRead(m, annotation, resource, bytes);
+        }
+        if (stamp != null) {
+            synchronized (IndexCache.class) {
+                parsed.put(key, new Parsed(stamp, value));
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Loads the content of a resource.
+     * If {@link #MAP}, a plain {@code file:} URL, as from a classes directory, is mapped into memory rather than copied.
+     */
+    static ByteBuffer read(URL resource) throws IOException {
+        return read(resource, MAP);
+    }
+
+    static ByteBuffer read(URL resource, boolean map) throws IOException {
+        if (map && resource.getProtocol().equals("file")) {
+            File f = Stamp.file(resource);
+            if (f != null) {
+                try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+                    return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                } catch (NoSuchFileException x) {
+                    // fall back to URL handler and let it report the problem
+                }
+            }
+        }
+        try (InputStream is = resource.openStream()) {
+            return ByteBuffer.wrap(is.readAllBytes());
+        }
+    }
+
+    static synchronized void clear() {
+        parsed.clear();
+        resources.clear();
+        aggregates.clear();
+    }
+
+    static synchronized void clear(ClassLoader loader) {
+        Map<String,URL> byContainer = aggregates.remove(loader);
+        if (byContainer != null) {
+            for (URL url : byContainer.values()) {
+                parsed.remove(url.toExternalForm());
+            }
+        }
+        Map<String,List<URL>> byName = resources.remove(loader);
+        if (byName != null) {
+            for (List<URL> urls : byName.values()) {
+                for (URL url : urls) {
+                    parsed.remove(url.toExternalForm());
+                }
+            }
+        }
+    }
+
+    private static final class Parsed {
+        final Stamp stamp;
+        final Object value;
+        Parsed(Stamp stamp, Object value) {
+            this.stamp = stamp;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Contents of one {@link Indexer#AGGREGATE_INDEX}, decoded per annotation on demand.
+     */
+    private static final class Aggregate {
+
+        final Map<String,ByteBuffer> sections;
+        final Map<String,Long> checksums;
+        final BloomFilter summary;
+        /** whether each section matches the per-annotation resource in the same JAR */
+        final Map<String,Boolean> current = new ConcurrentHashMap<String,Boolean>();
+        private final Map<String,List<SerAnnotatedElement>> decoded = new ConcurrentHashMap<String,List<SerAnnotatedElement>>();
+
+        Aggregate(ByteBuffer buf) throws IOException {
+            sections = IndexFile.sections(buf);
+            checksums = IndexFile.checksums(buf);
+            summary = IndexFile.summary(buf);
+        }
+
+        /**
+         * @return elements for the annotation, or null if this aggregate does not mention it
+         */
+        List<SerAnnotatedElement> elements(String annotation) throws IOException {
+            List<SerAnnotatedElement> elements = decoded.get(annotation);
+            if (elements == null) {
+                ByteBuffer section = sections.get(annotation);
+                if (section == null) {
+                    return null;
+                }
+                elements = IndexFile.read(section);
+                decoded.put(annotation, elements);
+            }
+            return elements;
+        }
+
+    }
+
+    /**
+     * Timestamp and size of the file from which a resource is loaded.
+     */
+    static final class Stamp {
+
+        private final long lastModified;
+        private final long length;
+
+        private Stamp(long lastModified, long length) {
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+
+        /**
+         * @return a stamp for a {@code file:} or {@code jar:file:} URL, else null if it cannot be validated
+         */
+        static Stamp of(URL resource) {
+            File f = file(resource);
+            if (f == null) {
+                return null;
+            }
+            long lastModified = f.lastModified();
+            if (lastModified == 0) {
+                return null;
+            }
+            return new Stamp(lastModified, f.length());
+        }
+
+        /**
+         * @return a stamp of what would change were a missing resource created: the JAR it would be in, or else its directory;
+         *         or null if it cannot be validated
+         */
+        static Stamp ofMissing(URL resource) {
+            File f = file(resource);
+            if (f == null) {
+                return null;
+            }
+            if (!resource.getProtocol().equals("jar")) {
+                f = f.getParentFile();
+            }
+            long lastModified = f.lastModified();
+            if (lastModified == 0) {
+                return null;
+            }
+            return new Stamp(lastModified, f.length());
+        }
+
+        /**
+         * @return the local file or JAR which a resource is loaded from, or null
+         */
+        static File file(URL resource) {
+            String u = resource.toExternalForm();
+            if (u.startsWith("jar:")) {
+                int bang = u.indexOf("!/");
+                if (bang == -1) {
+                    return null;
+                }
+                u = u.substring(4, bang);
+            }
+            if (!u.startsWith("file:")) {
+                return null;
+            }
+            try {
+                return new File(URI.create(u));
+            } catch (IllegalArgumentException x) {
+                return null;
+            }
+        }
+
+        @Override public boolean equals(Object obj) {
+            return obj instanceof Stamp && ((Stamp) obj).lastModified == lastModified && ((Stamp) obj).length == length;
+        }
+
+        @Override public int hashCode() {
+            return Long.hashCode(lastModified) ^ Long.hashCode(length);
+        }
+
+    }
+
+}
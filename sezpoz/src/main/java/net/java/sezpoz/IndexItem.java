@@ -36,18 +36,26 @@ import java.io.File;
 import java.io.IOException;
 import java.lang.annotation.Annotation;
 import java.lang.annotation.ElementType;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.AnnotatedElement;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.lang.reflect.UndeclaredThrowableException;
 import java.net.URI;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -60,8 +68,11 @@ import net.java.sezpoz.impl.SerTypeConst;
 /**
  * One index item.
  * May be associated with a class, method, or field.
- * Caches result of {@link #element} and {@link #instance} after first call.
- * Not thread-safe.
+ * Caches result of {@link #annotation}, {@link #element} and {@link #instance} after first call.
+ * May be shared between threads.
+ * The annotation and element are published without locking;
+ * if several threads ask for them at once, all but one of the (equal) results are discarded.
+ * The instance is created exactly once, under a lock held only by this item.
  * @param <A> the type of annotation being loaded
  * @param <I> the type of instance being loaded
  */
@@ -74,15 +85,35 @@ public final class IndexItem<A extends Annotation,I> {
     private final Class<I> instanceType;
     private final ClassLoader loader;
     private final URL resource;
-    private AnnotatedElement element;
-    private Object instance;
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<IndexItem,Annotation> ANNOTATION = AtomicReferenceFieldUpdater.newUpdater(IndexItem.class, Annotation.class, "annotation");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<IndexItem,AnnotatedElement> ELEMENT = AtomicReferenceFieldUpdater.newUpdater(IndexItem.class, AnnotatedElement.class, "element");
+    /** stands for a null {@link #instance} once created */
+    private static final Object NULL = new Object();
+
+    private volatile A annotation;
+    private volatile AnnotatedElement element;
+    /** null until created, then the instance or {@link #NULL} */
+    private volatile Object instance;
+    /** creates an instance, of type {@code ()Object} */
+    private volatile MethodHandle handle;
+    private volatile Supplier<I> factory;
 
     IndexItem(SerAnnotatedElement structure, Class<A> annotationType, Class<I> instanceType, ClassLoader loader, URL resource) throws IOException {
+        this(structure, annotationType, instanceType, loader, resource, null);
+    }
+
+    /**
+     * @param handle creates the instance without loading the element, as from a {@link net.java.sezpoz.impl.Registry}; or null to look it up
+     */
+    IndexItem(SerAnnotatedElement structure, Class<A> annotationType, Class<I> instanceType, ClassLoader loader, URL resource, MethodHandle handle) {
         this.structure = structure;
         this.annotationType = annotationType;
         this.instanceType = instanceType;
         this.loader = loader;
         this.resource = resource;
+        this.handle = handle;
         LOGGER.log(Level.FINE, "Loaded index item {0}", structure);
     }
 
@@ -93,10 +124,21 @@ public final class IndexItem<A extends Annotation,I> {
      * to) the "real" annotation available from {@link AnnotatedElement#getAnnotation}
      * on {@link #element}
      * (if in fact it has runtime retention, which is encouraged but not required).
+     * The proxy is cached, as are the values of its methods once first called.
      * @return a live or proxy annotation
      */
+    @SuppressWarnings("unchecked")
     public A annotation() {
-        return proxy(loader, annotationType, structure.values);
+        A a = annotation;
+        if (a == null) {
+            ANNOTATION.compareAndSet(this, null, proxy(loader, annotationType, structure.values()));
+            a = annotation;
+        }
+        return a;
+    }
+
+    Class<A> annotationType() {
+        return annotationType;
     }
 
     /**
@@ -129,28 +171,37 @@ public final class IndexItem<A extends Annotation,I> {
      * @throws InstantiationException if the class cannot be loaded or there is some other reflective problem
      */
     public AnnotatedElement element() throws InstantiationException {
-        if (element == null) {
+        AnnotatedElement e = element;
+        if (e == null) {
+            IndexListeners.Measurement m = IndexListeners.begin(IndexListeners.Kind.ELEMENT);
             try {
                 Class<?> impl = loader.loadClass(className());
                 if (structure.isMethod) {
-                    element = impl.getMethod(structure.memberName);
+                    e = impl.getMethod(structure.memberName);
                 } else if (structure.memberName != null) {
-                    element = impl.getField(structure.memberName);
+                    e = impl.getField(structure.memberName);
                 } else {
-                    element = impl;
+                    e = impl;
+                }
+                if (ELEMENT.compareAndSet(this, null, e)) {
+                    LOGGER.log(Level.FINER, "Loaded annotated element: {0}", e);
+                    if (m != null) {
+                        IndexListeners.elementLoaded(m, this);
+                    }
+                } else {
+                    e = element;
                 }
-                LOGGER.log(Level.FINER, "Loaded annotated element: {0}", element);
             } catch (Exception x) {
                 throw (InstantiationException) new InstantiationException(labelFor(resource) + " might need to be rebuilt: " + x).initCause(x);
             } catch (LinkageError x) {
                 throw (InstantiationException) new InstantiationException(x.toString()).initCause(x);
             }
         }
-        return element;
+        return e;
     }
 
     private static String labelFor(URL resource) {
-        String u = resource.toString();
+        String u = String.valueOf(resource);
         Matcher m = Pattern.compile("jar:(file:.+)!/.+").matcher(u);
         if (m.matches()) {
             return new File(URI.create(m.group(1))).getAbsolutePath();
@@ -161,7 +212,9 @@ public final class IndexItem<A extends Annotation,I> {
 
     /**
      * Get an instance referred to by the element.
-     * This instance is cached by the item object.
+     * This instance (even if null) is cached by the item object,
+     * and is created only once even if several threads ask for it at the same time;
+     * if creation fails, the next call tries again.
      * The element must always be public.
      * <ol>
      * <li>In case of a class, the class will be instantiated by a public no-argument constructor.
@@ -174,26 +227,95 @@ public final class IndexItem<A extends Annotation,I> {
      *                                or if creating the object fails
      */
     public I instance() throws InstantiationException {
-        if (instance == null) {
+        Object i = instance;
+        if (i == null) {
+            synchronized (this) {
+                i = instance;
+                if (i == null) {
+                    MethodHandle h = handle();
+                    IndexListeners.Measurement m = IndexListeners.begin(IndexListeners.Kind.INSTANCE);
+                    try {
+                        i = (Object) h.invokeExact();
+                        LOGGER.log(Level.FINER, "Loaded instance: {0}", i);
+                        if (m != null) {
+                            IndexListeners.instanceCreated(m, this);
+                        }
+                    } catch (InstantiationException x) {
+                        throw x;
+                    } catch (Exception x) {
+                        throw (InstantiationException) new InstantiationException(x.toString()).initCause(x);
+                    } catch (LinkageError x) {
+                        throw (InstantiationException) new InstantiationException(x.toString()).initCause(x);
+                    } catch (Error x) {
+                        throw x;
+                    } catch (Throwable x) {
+                        throw (InstantiationException) new InstantiationException(x.toString()).initCause(x);
+                    }
+                    if (i == null) {
+                        i = NULL;
+                    }
+                    instance = i;
+                }
+            }
+        }
+        return i == NULL ? null : instanceType.cast(i);
+    }
+
+    /**
+     * Get a factory for fresh instances referred to by the element,
+     * for callers which need a new object each time rather than the one cached by {@link #instance}.
+     * The factory is cached by the item object and uses a method handle rather than reflection,
+     * so repeated calls cost no more than calling the constructor, method, or field directly.
+     * Follows the same rules as {@link #instance}; for a field, the factory just returns its current value.
+     * @return a factory which may be called from any thread;
+     *         its {@link Supplier#get} rethrows unchecked exceptions as is,
+     *         and wraps checked exceptions in {@link UndeclaredThrowableException}
+     * @throws InstantiationException for the same reasons as {@link #element},
+     *                                or if the element is not suitable for creating instances
+     */
+    public Supplier<I> factory() throws InstantiationException {
+        Supplier<I> f = factory;
+        if (f == null) {
+            MethodHandle h = handle();
+            Class<I> type = instanceType;
+            f = () -> {
+                try {
+                    return type.cast((Object) h.invokeExact());
+                } catch (RuntimeException | Error x) {
+                    throw x;
+                } catch (Throwable x) {
+                    throw new UndeclaredThrowableException(x);
+                }
+            };
+            factory = f;
+        }
+        return f;
+    }
+
+    /**
+     * Finds a constructor, static method, or static field getter for the element.
+     */
+    private MethodHandle handle() throws InstantiationException {
+        MethodHandle h = handle;
+        if (h == null) {
             AnnotatedElement e = element();
             try {
+                MethodHandles.Lookup lookup = MethodHandles.publicLookup();
                 if (e instanceof Class<?>) {
-                    instance = ((Class<?>) e).newInstance();
+                    h = lookup.findConstructor((Class<?>) e, MethodType.methodType(void.class));
                 } else if (e instanceof Method) {
-                    instance = ((Method) e).invoke(null);
+                    h = lookup.unreflect((Method) e);
                 } else {
-                    instance = ((Field) e).get(null);
+                    h = lookup.unreflectGetter((Field) e);
                 }
-                LOGGER.log(Level.FINER, "Loaded instance: {0}", instance);
-            } catch (InstantiationException x) {
-                throw x;
-            } catch (Exception x) {
-                throw (InstantiationException) new InstantiationException(x.toString()).initCause(x);
-            } catch (LinkageError x) {
+                // Fails for instance methods and fields, which would need a receiver.
+                h = h.asType(MethodType.methodType(Object.class));
+            } catch (ReflectiveOperationException | RuntimeException x) {
                 throw (InstantiationException) new InstantiationException(x.toString()).initCause(x);
             }
+            handle = h;
         }
-        return instanceType.cast(instance);
+        return h;
     }
 
     @Override
@@ -221,6 +343,36 @@ public final class IndexItem<A extends Annotation,I> {
                 new AnnotationProxy(loader, type, data)));
     }
 
+    /**
+     * Reflective information about an annotation type, computed once per type.
+     */
+    private static final class Members {
+
+        private static final ClassValue<Members> BY_TYPE = new ClassValue<Members>() {
+            @Override protected Members computeValue(Class<?> type) {
+                return new Members(type);
+            }
+        };
+
+        /** annotation methods */
+        final Method[] methods;
+        /** default value of each method, or null */
+        final Object[] defaults;
+        /** position of each method by name */
+        final Map<String,Integer> index;
+
+        private Members(Class<?> type) {
+            methods = type.getDeclaredMethods();
+            defaults = new Object[methods.length];
+            index = new HashMap<String,Integer>(methods.length * 2);
+            for (int i = 0; i < methods.length; i++) {
+                defaults[i] = methods[i].getDefaultValue();
+                index.put(methods[i].getName(), i);
+            }
+        }
+
+    }
+
     /**
      * Manages a proxy for the live annotation.
      */
@@ -230,41 +382,42 @@ public final class IndexItem<A extends Annotation,I> {
         private final ClassLoader loader;
         /** type of the annotation */
         private final Class<? extends Annotation> type;
+        /** methods of {@link #type} */
+        private final Members members;
         /** (non-default) annotation method values; value may be wrapped in Ser*Const objects or ArrayList */
         private final Map<String,Object> data;
+        /** live value of each annotation method, by {@link Members#index}, filled in on first call */
+        private final AtomicReferenceArray<Object> evaluated;
+        /** cached {@link #hashCode}, valid once {@link #hashed} */
+        private int hash;
+        private volatile boolean hashed;
 
         public AnnotationProxy(ClassLoader loader, Class<? extends Annotation> type, Map<String,Object> data) {
             this.loader = loader;
             this.type = type;
             this.data = data;
+            members = Members.BY_TYPE.get(type);
+            evaluated = new AtomicReferenceArray<Object>(members.methods.length);
         }
 
         public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
             String name = method.getName();
-            if (name.equals("annotationType") && method.getParameterTypes().length == 0) {
-                return type;
-            } else if (name.equals("hashCode") && method.getParameterTypes().length == 0) {
-                // See Annotation#hashCode for explanation of algorithm.
-                int x = 0;
-                for (Method m : type.getDeclaredMethods()) {
-                    Object val = annCall(m);
-                    int valhash = val.hashCode();
-                    Class<?> arrClazz;
-                    if (val instanceof Object[]) {
-                        arrClazz = Object[].class;
-                    } else {
-                        arrClazz = val.getClass();
-                    }
-                    try {
-                        Method arraysHashCode = Arrays.class.getMethod("hashCode", arrClazz);
-                        valhash = (Integer) arraysHashCode.invoke(null, val);
-                    } catch (NoSuchMethodException nsme) {
-                        // fine, not an array object
-                    }
-                    x += (127 * m.getName().hashCode()) ^ valhash;
+            int paramCount = method.getParameterCount();
+            if (paramCount == 0) {
+                // Annotation methods may not be named after those of Object or Annotation.
+                Integer index = members.index.get(name);
+                if (index != null) {
+                    Object val = value(index);
+                    return val.getClass().isArray() ? copy(val) : val;
+                } else if (name.equals("annotationType")) {
+                    return type;
+                } else if (name.equals("hashCode")) {
+                    return hashCode();
+                } else if (name.equals("toString")) {
+                    // No firm contract, just for debugging.
+                    return "@" + type.getName() + data;
                 }
-                return x;
-            } else if (name.equals("equals") && method.getParameterTypes().length == 1 && method.getParameterTypes()[0] == Object.class) {
+            } else if (paramCount == 1 && name.equals("equals") && method.getParameterTypes()[0] == Object.class) {
                 // All annotation values have to be equal (even if defaulted).
                 if (!(args[0] instanceof Annotation)) {
                     return false;
@@ -273,52 +426,125 @@ public final class IndexItem<A extends Annotation,I> {
                 if (type != o.annotationType()) {
                     return false;
                 }
-                for (Method m : type.getDeclaredMethods()) {
-                    Object myval = annCall(m);
-                    Object other = m.invoke(o);
-                    Class<?> arrClazz;
-                    if (myval instanceof Object[]) {
-                        arrClazz = Object[].class;
-                    } else {
-                        arrClazz = myval.getClass();
-                    }
-                    try {
-                        Method arraysEquals = Arrays.class.getMethod("equals", arrClazz, arrClazz);
-                        if (!((Boolean) arraysEquals.invoke(null, myval, other))) {
-                            return false;
-                        }
-                    } catch (NoSuchMethodException nsme) {
-                        // fine, not an array object
-                        if (!myval.equals(other)) {
+                AnnotationProxy other = null;
+                if (Proxy.isProxyClass(o.getClass())) {
+                    InvocationHandler h = Proxy.getInvocationHandler(o);
+                    if (h instanceof AnnotationProxy) {
+                        other = (AnnotationProxy) h;
+                        if (other.hashCode() != hashCode()) {
                             return false;
                         }
                     }
                 }
+                for (int i = 0; i < members.methods.length; i++) {
+                    Object myval = value(i);
+                    Object otherval = other != null ? other.value(i) : members.methods[i].invoke(o);
+                    if (!valueEquals(myval, otherval)) {
+                        return false;
+                    }
+                }
                 return true;
-            } else if (name.equals("toString") && method.getParameterTypes().length == 0) {
-                // No firm contract, just for debugging.
-                return "@" + type.getName() + data;
-            } else {
-                // Anything else is presumed to be one of the annotation methods.
-                return annCall(method);
             }
+            throw new AssertionError(method);
         }
 
         /**
-         * Invoke an annotation method.
+         * Computes {@link Annotation#hashCode} for the proxy.
+         * Evaluates every value, and so is computed only once.
          */
-        private Object annCall(Method m) throws Exception {
-            assert m.getParameterTypes().length == 0;
-            String name = m.getName();
-            if (data.containsKey(name)) {
-                return evaluate(data.get(name), m.getReturnType());
+        @Override public int hashCode() {
+            if (!hashed) {
+                int h = 0;
+                for (int i = 0; i < members.methods.length; i++) {
+                    Object val;
+                    try {
+                        val = value(i);
+                    } catch (Exception x) {
+                        throw new IllegalStateException(x);
+                    }
+                    h += (127 * members.methods[i].getName().hashCode()) ^ valueHash(val);
+                }
+                hash = h;
+                hashed = true;
+            }
+            return hash;
+        }
+
+        private static int valueHash(Object val) {
+            if (val instanceof Object[]) {
+                return Arrays.hashCode((Object[]) val);
+            } else if (val instanceof int[]) {
+                return Arrays.hashCode((int[]) val);
+            } else if (val instanceof long[]) {
+                return Arrays.hashCode((long[]) val);
+            } else if (val instanceof boolean[]) {
+                return Arrays.hashCode((boolean[]) val);
+            } else if (val instanceof byte[]) {
+                return Arrays.hashCode((byte[]) val);
+            } else if (val instanceof char[]) {
+                return Arrays.hashCode((char[]) val);
+            } else if (val instanceof short[]) {
+                return Arrays.hashCode((short[]) val);
+            } else if (val instanceof float[]) {
+                return Arrays.hashCode((float[]) val);
+            } else if (val instanceof double[]) {
+                return Arrays.hashCode((double[]) val);
             } else {
-                Object o = m.getDefaultValue();
-                assert o != null;
-                return o;
+                return val.hashCode();
+            }
+        }
+
+        private static boolean valueEquals(Object a, Object b) {
+            if (a instanceof Object[]) {
+                return b instanceof Object[] && Arrays.equals((Object[]) a, (Object[]) b);
+            } else if (a instanceof int[]) {
+                return b instanceof int[] && Arrays.equals((int[]) a, (int[]) b);
+            } else if (a instanceof long[]) {
+                return b instanceof long[] && Arrays.equals((long[]) a, (long[]) b);
+            } else if (a instanceof boolean[]) {
+                return b instanceof boolean[] && Arrays.equals((boolean[]) a, (boolean[]) b);
+            } else if (a instanceof byte[]) {
+                return b instanceof byte[] && Arrays.equals((byte[]) a, (byte[]) b);
+            } else if (a instanceof char[]) {
+                return b instanceof char[] && Arrays.equals((char[]) a, (char[]) b);
+            } else if (a instanceof short[]) {
+                return b instanceof short[] && Arrays.equals((short[]) a, (short[]) b);
+            } else if (a instanceof float[]) {
+                return b instanceof float[] && Arrays.equals((float[]) a, (float[]) b);
+            } else if (a instanceof double[]) {
+                return b instanceof double[] && Arrays.equals((double[]) a, (double[]) b);
+            } else {
+                return a.equals(b);
             }
         }
 
+        /**
+         * Get the live value of an annotation method, evaluating it on first use.
+         * Arrays are shared and must be copied before being handed out.
+         */
+        private Object value(int index) throws Exception {
+            Object val = evaluated.get(index);
+            if (val == null) {
+                Method m = members.methods[index];
+                Object o = data.get(m.getName());
+                if (o != null) {
+                    val = evaluate(o, m.getReturnType());
+                } else {
+                    val = members.defaults[index];
+                    assert val != null;
+                }
+                evaluated.set(index, val);
+            }
+            return val;
+        }
+
+        private static Object copy(Object array) {
+            int length = Array.getLength(array);
+            Object copy = Array.newInstance(array.getClass().getComponentType(), length);
+            System.arraycopy(array, 0, copy, 0, length);
+            return copy;
+        }
+
         /**
          * Unwrap a value to a live type.
          */
@@ -0,0 +1,69 @@
+package net.java.sezpoz;
+
+import java.net.URL;
+
+/**
+ * Receives measurements of index loading, such as to attribute startup time to particular annotations or JARs.
+ * Register using {@link Index#addListener}.
+ * All methods have empty defaults, so implement only those of interest.
+ * Methods may be called concurrently from any thread and should return quickly;
+ * exceptions they throw are logged and otherwise ignored.
+ * Times are in nanoseconds as from {@link System#nanoTime}.
+ * Index files are decoded lazily: {@link #resourceRead} and {@link #resourceLoaded} cover reading a file
+ * and finding the entries to load, while each entry and its annotation values are decoded later,
+ * as items are iterated and their annotations first used, and are not measured separately.
+ */
+public interface IndexListener {
+
+    /**
+     * Called after looking for the index resources of an annotation in a class loader.
+     * @param annotation name of the annotation type
+     * @param loader the class loader searched
+     * @param resources the number of resources found
+     * @param nanos time spent, mostly in {@link ClassLoader#getResources}
+     */
+    default void resourcesFound(String annotation, ClassLoader loader, int resources, long nanos) {}
+
+    /**
+     * Called after reading and parsing one file, unless it was still in the process-wide cache.
+     * @param annotation name of the annotation type which caused it to be read
+     * @param resource an index file, or the aggregated index of a JAR
+     * @param bytes the size of the file
+     * @param nanos time spent reading the file and parsing its header and offset tables, but not its entries
+     */
+    default void resourceRead(String annotation, URL resource, long bytes, long nanos) {}
+
+    /**
+     * Called after loading the entries of one index resource, whether or not it had to be read.
+     * @param annotation name of the annotation type
+     * @param resource the index resource
+     * @param entries the number of entries found, after any {@link Index#where} or {@link Index#lookup} restrictions
+     * @param nanos time spent in total, including any {@link #resourceRead};
+     *              covers applying any restrictions, which may decode some entries or attributes,
+     *              but not decoding the entries which are returned
+     */
+    default void resourceLoaded(String annotation, URL resource, int entries, long nanos) {}
+
+    /**
+     * Called when an entry is skipped because an earlier resource listed the same element.
+     * @param annotation name of the annotation type
+     * @param resource the index resource with the duplicate entry
+     * @param element the element, formatted as e.g. {@code x.y.Z#method()}
+     */
+    default void duplicateSkipped(String annotation, URL resource, String element) {}
+
+    /**
+     * Called after {@link IndexItem#element} first loads the annotated element.
+     * @param item the item
+     * @param nanos time spent, mostly loading its class
+     */
+    default void elementLoaded(IndexItem<?,?> item, long nanos) {}
+
+    /**
+     * Called after {@link IndexItem#instance} creates the instance.
+     * @param item the item
+     * @param nanos time spent calling the constructor, method, or field, not including {@link #elementLoaded}
+     */
+    default void instanceCreated(IndexItem<?,?> item, long nanos) {}
+
+}
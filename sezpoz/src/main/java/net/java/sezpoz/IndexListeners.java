@@ -0,0 +1,168 @@
+package net.java.sezpoz;
+
+import java.net.URL;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Registered {@link IndexListener}s, and dispatch to them.
+ * Callers measure some work by calling {@link #begin} before it
+ * and, if that returned non-null, the matching method reporting its end after it.
+ */
+final class IndexListeners {
+
+    private static final Logger LOGGER = Logger.getLogger(IndexListeners.class.getName());
+
+    private static volatile IndexListener[] listeners = new IndexListener[0];
+
+    private IndexListeners() {}
+
+    /**
+     * Arranges for JFR events to be emitted while recording, if JFR is available.
+     * Only the event API is loaded, not the recorder itself, so this costs little when not recording.
+     */
+    static void installJfr() {
+        // Optional, so that SezPoz runs on images without JFR; -Dnet.java.sezpoz.Index.jfr=false to disable.
+        if (!"false".equals(System.getProperty(Index.class.getName() + ".jfr")) && ModuleLayer.boot().findModule("jdk.jfr").isPresent()) {
+            try {
+                Class.forName(IndexListeners.class.getPackage().getName() + ".JfrRecorder").getDeclaredMethod("install").invoke(null);
+            } catch (Exception | LinkageError x) {
+                LOGGER.log(Level.FINE, "Could not enable JFR events", x);
+            }
+        }
+    }
+
+    static synchronized void add(IndexListener listener) {
+        IndexListener[] l = Arrays.copyOf(listeners, listeners.length + 1);
+        l[l.length - 1] = listener;
+        listeners = l;
+    }
+
+    static synchronized void remove(IndexListener listener) {
+        IndexListener[] l = listeners;
+        for (int i = 0; i < l.length; i++) {
+            if (l[i] == listener) {
+                IndexListener[] _l = new IndexListener[l.length - 1];
+                System.arraycopy(l, 0, _l, 0, i);
+                System.arraycopy(l, i + 1, _l, i, l.length - i - 1);
+                listeners = _l;
+                return;
+            }
+        }
+    }
+
+    /** Whether to call {@link #duplicateSkipped}. */
+    static boolean active() {
+        return listeners.length > 0;
+    }
+
+    /**
+     * Emits events which must begin before the work they describe, unlike {@link IndexListener}s.
+     * Implemented by {@link JfrRecorder}, and set only if JFR is available.
+     */
+    interface Recorder {
+        /** @return an event which has begun, or null if events of this kind are not enabled */
+        Object begin(Kind kind);
+        void resourcesFound(Object event, String annotation, ClassLoader loader, int resources);
+        void resourceRead(Object event, String annotation, URL resource, long bytes);
+        void resourceLoaded(Object event, String annotation, URL resource, int entries);
+        void elementLoaded(Object event, IndexItem<?,?> item);
+        void instanceCreated(Object event, IndexItem<?,?> item);
+    }
+
+    /** The kinds of work which may be measured. */
+    enum Kind {SCAN, READ, LOAD, ELEMENT, INSTANCE}
+
+    private static volatile Recorder recorder;
+
+    static void setRecorder(Recorder r) {
+        recorder = r;
+    }
+
+    /** Work in progress, as returned by {@link #begin}. */
+    static final class Measurement {
+        final long start = System.nanoTime();
+        final Recorder recorder;
+        final Object event;
+        Measurement(Recorder recorder, Object event) {
+            this.recorder = recorder;
+            this.event = event;
+        }
+        long nanos() {
+            return System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Begins measuring some work.
+     * @return a measurement to pass when reporting the end of the work, or null if there is nobody to tell
+     */
+    static Measurement begin(Kind kind) {
+        Recorder r = recorder;
+        Object event = r != null ? r.begin(kind) : null;
+        if (event == null && listeners.length == 0) {
+            return null;
+        }
+        return new Measurement(r, event);
+    }
+
+    private interface Call {
+        void call(IndexListener listener);
+    }
+
+    private static void fire(Call call) {
+        for (IndexListener listener : listeners) {
+            try {
+                call.call(listener);
+            } catch (RuntimeException x) {
+                LOGGER.log(Level.WARNING, "Listener " + listener + " failed", x);
+            }
+        }
+    }
+
+    static void resourcesFound(Measurement m, String annotation, ClassLoader loader, int resources) {
+        long nanos = m.nanos();
+        if (m.event != null) {
+            m.recorder.resourcesFound(m.event, annotation, loader, resources);
+        }
+        fire(l -> l.resourcesFound(annotation, loader, resources, nanos));
+    }
+
+    static void resourceRead(Measurement m, String annotation, URL resource, long bytes) {
+        long nanos = m.nanos();
+        if (m.event != null) {
+            m.recorder.resourceRead(m.event, annotation, resource, bytes);
+        }
+        fire(l -> l.resourceRead(annotation, resource, bytes, nanos));
+    }
+
+    static void resourceLoaded(Measurement m, String annotation, URL resource, int entries) {
+        long nanos = m.nanos();
+        if (m.event != null) {
+            m.recorder.resourceLoaded(m.event, annotation, resource, entries);
+        }
+        fire(l -> l.resourceLoaded(annotation, resource, entries, nanos));
+    }
+
+    static void duplicateSkipped(String annotation, URL resource, String element) {
+        fire(l -> l.duplicateSkipped(annotation, resource, element));
+    }
+
+    static void elementLoaded(Measurement m, IndexItem<?,?> item) {
+        long nanos = m.nanos();
+        if (m.event != null) {
+            m.recorder.elementLoaded(m.event, item);
+        }
+        fire(l -> l.elementLoaded(item, nanos));
+    }
+
+    static void instanceCreated(Measurement m, IndexItem<?,?> item) {
+        long nanos = m.nanos();
+        if (m.event != null) {
+            m.recorder.instanceCreated(m.event, item);
+        }
+        fire(l -> l.instanceCreated(item, nanos));
+    }
+
+}
@@ -58,5 +58,13 @@ public @interface Indexable {
      * @return the type of instance
      */
     Class<?> type() default Object.class;
+
+    /**
+     * Optional names of attributes of the annotation by which registrations should be indexed,
+     * so that {@link Index#where} can find them without reading every entry.
+     * Each attribute must be of a primitive, {@link String}, enum, or {@link Class} type, or an array of one of those.
+     * @return attribute names
+     */
+    String[] indexedBy() default {};
     
 }
@@ -0,0 +1,159 @@
+package net.java.sezpoz;
+
+import java.net.URL;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Emits JDK Flight Recorder events for index loading.
+ * Always set as the {@link IndexListeners.Recorder} when JFR is available,
+ * but an event is only begun if it is enabled, that is while some recording includes it, so costs little otherwise.
+ * Each event begins before the work it describes and is committed once it ends, so it has the usual duration.
+ * Only loaded via reflection by {@link IndexListeners}, and only if the {@code jdk.jfr} module is present.
+ */
+final class JfrRecorder implements IndexListeners.Recorder {
+
+    private JfrRecorder() {}
+
+    static void install() {
+        IndexListeners.setRecorder(new JfrRecorder());
+    }
+
+    @Override public Object begin(IndexListeners.Kind kind) {
+        Event event;
+        switch (kind) {
+        case SCAN:
+            event = new IndexScan();
+            break;
+        case READ:
+            event = new IndexResourceRead();
+            break;
+        case LOAD:
+            event = new IndexResourceLoad();
+            break;
+        case ELEMENT:
+            event = new IndexElementLoad();
+            break;
+        case INSTANCE:
+            event = new IndexItemInstantiate();
+            break;
+        default:
+            throw new AssertionError(kind);
+        }
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    @Override public void resourcesFound(Object e, String annotation, ClassLoader loader, int resources) {
+        IndexScan event = (IndexScan) e;
+        event.end();
+        if (event.shouldCommit()) {
+            event.annotation = annotation;
+            event.loader = String.valueOf(loader);
+            event.resources = resources;
+            event.commit();
+        }
+    }
+
+    @Override public void resourceRead(Object e, String annotation, URL resource, long bytes) {
+        IndexResourceRead event = (IndexResourceRead) e;
+        event.end();
+        if (event.shouldCommit()) {
+            event.annotation = annotation;
+            event.resource = resource.toExternalForm();
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+    @Override public void resourceLoaded(Object e, String annotation, URL resource, int entries) {
+        IndexResourceLoad event = (IndexResourceLoad) e;
+        event.end();
+        if (event.shouldCommit()) {
+            event.annotation = annotation;
+            event.resource = resource.toExternalForm();
+            event.entries = entries;
+            event.commit();
+        }
+    }
+
+    @Override public void elementLoaded(Object e, IndexItem<?,?> item) {
+        IndexElementLoad event = (IndexElementLoad) e;
+        event.end();
+        if (event.shouldCommit()) {
+            event.annotation = item.annotationType().getName();
+            event.element = element(item);
+            event.commit();
+        }
+    }
+
+    @Override public void instanceCreated(Object e, IndexItem<?,?> item) {
+        IndexItemInstantiate event = (IndexItemInstantiate) e;
+        event.end();
+        if (event.shouldCommit()) {
+            event.annotation = item.annotationType().getName();
+            event.element = element(item);
+            event.commit();
+        }
+    }
+
+    private static String element(IndexItem<?,?> item) {
+        return item.memberName() != null ? item.className() + '#' + item.memberName() : item.className();
+    }
+
+    @Name("net.java.sezpoz.IndexScan")
+    @Label("Index Scan")
+    @Description("Looking for the index resources of an annotation in a class loader")
+    @Category("SezPoz")
+    static final class IndexScan extends Event {
+        @Label("Annotation") String annotation;
+        @Label("Class Loader") String loader;
+        @Label("Resources") int resources;
+    }
+
+    @Name("net.java.sezpoz.IndexResourceRead")
+    @Label("Index Resource Read")
+    @Description("Reading an index file not found in the cache and parsing its header; entries are decoded later")
+    @Category("SezPoz")
+    static final class IndexResourceRead extends Event {
+        @Label("Annotation") String annotation;
+        @Label("Resource") String resource;
+        @Label("Size") @DataAmount long bytes;
+    }
+
+    @Name("net.java.sezpoz.IndexResourceLoad")
+    @Label("Index Resource Load")
+    @Description("Finding the entries of one index resource to load; entries are decoded later")
+    @Category("SezPoz")
+    static final class IndexResourceLoad extends Event {
+        @Label("Annotation") String annotation;
+        @Label("Resource") String resource;
+        @Label("Entries") int entries;
+    }
+
+    @Name("net.java.sezpoz.IndexElementLoad")
+    @Label("Index Element Load")
+    @Description("Loading the class or member of an index item")
+    @Category("SezPoz")
+    static final class IndexElementLoad extends Event {
+        @Label("Annotation") String annotation;
+        @Label("Element") String element;
+    }
+
+    @Name("net.java.sezpoz.IndexItemInstantiate")
+    @Label("Index Item Instantiate")
+    @Description("Creating the instance of an index item")
+    @Category("SezPoz")
+    static final class IndexItemInstantiate extends Event {
+        @Label("Annotation") String annotation;
+        @Label("Element") String element;
+    }
+
+}
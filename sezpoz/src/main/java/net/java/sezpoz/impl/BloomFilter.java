@@ -0,0 +1,126 @@
+package net.java.sezpoz.impl;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+/**
+ * Compact summary of which class names an aggregated index may register, as written in {@link IndexFile#writeAggregate}.
+ * False positives are possible (about 1% at the size chosen by {@link #create}), false negatives are not.
+ * Hashes are computed from the UTF-16 characters of each key, so do not depend on the JVM.
+ */
+public final class BloomFilter {
+
+    private static final int BITS_PER_KEY = 10;
+    private static final int HASHES = 7;
+
+    private final long[] bits;
+    private final int hashes;
+
+    private BloomFilter(long[] bits, int hashes) {
+        this.bits = bits;
+        this.hashes = hashes;
+    }
+
+    /**
+     * Creates an empty filter.
+     * @param expectedKeys the number of keys which will be added
+     */
+    static BloomFilter create(int expectedKeys) {
+        return new BloomFilter(new long[Math.max(1, (expectedKeys * BITS_PER_KEY + 63) / 64)], HASHES);
+    }
+
+    /**
+     * Computes the key under which an entry is summarized.
+     * @param annotation name of the annotation type
+     * @param className a class name (format e.g. "x.y.Z$I"), for the class itself or one of its members
+     */
+    public static String key(String annotation, String className) {
+        return annotation + '\0' + className;
+    }
+
+    void add(String key) {
+        int h1 = h1(key);
+        int h2 = h2(key);
+        long size = bits.length * 64L;
+        for (int i = 0; i < hashes; i++) {
+            int bit = (int) Math.floorMod(h1 + (long) i * h2, size);
+            bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    void addAll(Collection<String> keys) {
+        for (String key : keys) {
+            add(key);
+        }
+    }
+
+    /**
+     * @param key as from {@link #key}
+     * @return false if the key was definitely not added, true if it may have been
+     */
+    public boolean mightContain(String key) {
+        int h1 = h1(key);
+        int h2 = h2(key);
+        long size = bits.length * 64L;
+        for (int i = 0; i < hashes; i++) {
+            int bit = (int) Math.floorMod(h1 + (long) i * h2, size);
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Mixes {@link String#hashCode}, whose low bits are poorly distributed for similar strings. */
+    private static int h1(String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /** FNV-1a, forced odd so that successive probes differ. */
+    private static int h2(String key) {
+        int h = 0x811c9dc5;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x01000193;
+        }
+        return h | 1;
+    }
+
+    /** Writes u4 number of 64-bit words, u1 number of hashes, then the words. */
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(bits.length);
+        out.writeByte(hashes);
+        for (long word : bits) {
+            out.writeLong(word);
+        }
+    }
+
+    int size() {
+        return 4 + 1 + bits.length * 8;
+    }
+
+    /**
+     * Reads a filter written by {@link #write}, advancing the buffer past it.
+     */
+    static BloomFilter read(ByteBuffer buf) {
+        int words = buf.getInt();
+        if (words <= 0 || words > buf.remaining() / 8) {
+            throw new IllegalArgumentException("bad filter size " + words);
+        }
+        long[] bits = new long[words];
+        int hashes = buf.get() & 0xff;
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] = buf.getLong();
+        }
+        return new BloomFilter(bits, hashes);
+    }
+
+}
@@ -0,0 +1,979 @@
+package net.java.sezpoz.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.lang.reflect.Array;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.CRC32;
+
+/**
+ * Reads and writes the contents of one {@code META-INF/annotations/*} file.
+ * <p>
+ * By default {@link Indexer} writes a compact binary format:
+ * <pre>
+ * magic      'S' 'Z' 'P' 'Z'
+ * version    u1
+ * strings    u4 count, then for each: u4 length, UTF-8 bytes
+ * entries    u4 count, u1 flags (1 if sorted by {@link SerAnnotatedElement#key}), u4 length in bytes of all entries,
+ *            u4 offset of each entry from the first, then for each:
+ *              u4 class name (string index)
+ *              u4 member name (string index, or -1 for a class)
+ *              u1 flags (1 for a method)
+ *              u4 length in bytes of the following value map
+ *              value map
+ * value map  u4 count, then for each: u4 attribute name (string index), value
+ * sections   optional; u4 count, then for each: u1 kind, u4 length in bytes, payload:
+ *              a  index of entries by one attribute, as for {@link net.java.sezpoz.Indexable#indexedBy}:
+ *                 u4 attribute name (string index), u1 1 if a default value follows, [value],
+ *                 u4 count, then for each distinct key as in {@link #keys}:
+ *                 u4 key (string index), u4 count, u4 positions of matching entries
+ *            other kinds are skipped by readers which do not know them
+ * value      u1 tag, then:
+ *              Z B C S I J F D  primitive of the corresponding size
+ *              s                u4 string index
+ *              c                u4 class name (string index), i.e. {@link SerTypeConst}
+ *              e                u4 enum type, u4 constant name, i.e. {@link SerEnumConst}
+ *              &#64;                u4 annotation type, value map, i.e. {@link SerAnnConst}
+ *              [                u4 count, then values
+ * </pre>
+ * Files written by older versions as a sequence of serialized {@link SerAnnotatedElement}s
+ * terminated by null are still accepted; the format is detected by its magic bytes.
+ * <p>
+ * {@link Indexer#AGGREGATE_INDEX} optionally combines the indices of all annotations in one JAR:
+ * <pre>
+ * magic      'S' 'Z' 'P' 'A'
+ * version    u1
+ * summary    u4 number of 64-bit words, u1 number of hashes, then the words:
+ *            a {@link BloomFilter} over {@link BloomFilter#key} of the annotation and class name of every entry
+ * sections   u4 count, then for each: u4 length, UTF-8 annotation name, u4 offset, u4 length, u4 CRC-32
+ * followed by the binary index of each annotation at the given offset from the start of the file
+ * </pre>
+ * Each section has the same content as the per-annotation index file written alongside it,
+ * so the runtime can check that file's length and CRC-32 (as listed in a JAR) before trusting the section in its place:
+ * the per-annotation file may be rewritten later without the aggregate, as when merging JARs.
+ */
+public final class IndexFile {
+
+    static final byte[] BINARY_MAGIC = {'S', 'Z', 'P', 'Z'};
+    static final byte[] SER_MAGIC = {(byte) 0xac, (byte) 0xed, 0x00, 0x05};
+    static final byte[] AGGREGATE_MAGIC = {'S', 'Z', 'P', 'A'};
+    private static final int VERSION = 2;
+    private static final int AGGREGATE_VERSION = 4;
+
+    private IndexFile() {}
+
+    /**
+     * Checks whether some content looks like an index file.
+     * @param magic at least the first four bytes of the content
+     * @return true if it is in either the binary or the serialized format
+     */
+    public static boolean isIndex(byte[] magic) {
+        return startsWith(ByteBuffer.wrap(magic), BINARY_MAGIC) || startsWith(ByteBuffer.wrap(magic), SER_MAGIC);
+    }
+
+    /**
+     * Checks whether some content looks like an aggregated index file.
+     * @param magic at least the first four bytes of the content
+     * @return true if it was written by {@link #writeAggregate}
+     */
+    public static boolean isAggregate(byte[] magic) {
+        return startsWith(ByteBuffer.wrap(magic), AGGREGATE_MAGIC);
+    }
+
+    /**
+     * Reads an index file in either format.
+     * @param is the content (not closed)
+     * @return the elements in the order they were written, as an unmodifiable list
+     * @throws IOException if the content is malformed
+     */
+    public static List<SerAnnotatedElement> read(InputStream is) throws IOException {
+        return read(ByteBuffer.wrap(is.readAllBytes()));
+    }
+
+    /**
+     * Reads an index file in either format.
+     * @param buf the content, from its position to its limit
+     * @return the elements in the order they were written, as an unmodifiable list
+     * @throws IOException if the content is malformed
+     */
+    public static List<SerAnnotatedElement> read(ByteBuffer buf) throws IOException {
+        if (startsWith(buf, BINARY_MAGIC)) {
+            try {
+                return new Decoder(buf.slice()).entries();
+            } catch (BufferUnderflowException | IndexOutOfBoundsException x) {
+                throw new IOException("truncated or corrupt index", x);
+            }
+        } else if (startsWith(buf, SER_MAGIC)) {
+            InputStream is;
+            if (buf.hasArray()) {
+                is = new ByteArrayInputStream(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+            } else {
+                byte[] data = new byte[buf.remaining()];
+                buf.duplicate().get(data);
+                is = new ByteArrayInputStream(data);
+            }
+            return new Entries(readSerialized(is));
+        } else {
+            throw new IOException("does not look like a SezPoz index");
+        }
+    }
+
+    /**
+     * Reads an aggregated index file.
+     * @param is the content (not closed)
+     * @return elements by annotation name, in the order they were written
+     * @throws IOException if the content is malformed
+     */
+    public static Map<String,List<SerAnnotatedElement>> readAggregate(InputStream is) throws IOException {
+        Map<String,List<SerAnnotatedElement>> result = new TreeMap<String,List<SerAnnotatedElement>>();
+        for (Map.Entry<String,ByteBuffer> section : sections(ByteBuffer.wrap(is.readAllBytes())).entrySet()) {
+            result.put(section.getKey(), read(section.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * Finds the sections of an aggregated index file without decoding them.
+     * @param buf the content, from its position to its limit
+     * @return the index of each annotation by name, each suitable for {@link #read(ByteBuffer)}
+     * @throws IOException if the content is malformed
+     */
+    public static Map<String,ByteBuffer> sections(ByteBuffer buf) throws IOException {
+        return sections(buf, null);
+    }
+
+    /**
+     * Finds the checksums of the sections of an aggregated index file.
+     * @param buf the content, from its position to its limit
+     * @return the CRC-32 of each annotation's section by name, as from {@link CRC32#getValue}
+     * @throws IOException if the content is malformed
+     */
+    public static Map<String,Long> checksums(ByteBuffer buf) throws IOException {
+        Map<String,Long> checksums = new HashMap<String,Long>();
+        sections(buf, checksums);
+        return checksums;
+    }
+
+    private static Map<String,ByteBuffer> sections(ByteBuffer buf, Map<String,Long> checksums) throws IOException {
+        try {
+            ByteBuffer b = aggregateHeader(buf);
+            BloomFilter.read(b);
+            int count = count(b, 16);
+            Map<String,ByteBuffer> sections = new HashMap<String,ByteBuffer>(count * 2);
+            for (int i = 0; i < count; i++) {
+                byte[] name = new byte[count(b, 1)];
+                b.get(name);
+                int offset = b.getInt();
+                int length = b.getInt();
+                int crc = b.getInt();
+                ByteBuffer section = buf.slice();
+                section.position(offset);
+                section.limit(offset + length);
+                String annotation = new String(name, StandardCharsets.UTF_8);
+                sections.put(annotation, section.slice());
+                if (checksums != null) {
+                    checksums.put(annotation, crc & 0xffffffffL);
+                }
+            }
+            return sections;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException x) {
+            throw new IOException("truncated or corrupt index", x);
+        }
+    }
+
+    /**
+     * Reads the summary of class names in an aggregated index file, without looking at its sections.
+     * @param buf the content, from its position to its limit
+     * @return a filter to check {@link BloomFilter#key} of an annotation and class name against
+     * @throws IOException if the content is malformed
+     */
+    public static BloomFilter summary(ByteBuffer buf) throws IOException {
+        try {
+            return BloomFilter.read(aggregateHeader(buf));
+        } catch (BufferUnderflowException | IllegalArgumentException x) {
+            throw new IOException("truncated or corrupt index", x);
+        }
+    }
+
+    /**
+     * Reads a count or length, checking it against what remains so that a corrupt index cannot cause a huge allocation.
+     * @param minSize the fewest bytes each counted item can take
+     */
+    private static int count(ByteBuffer b, int minSize) throws IOException {
+        int count = b.getInt();
+        if (count < 0 || count > b.remaining() / minSize) {
+            throw new IOException("truncated or corrupt index");
+        }
+        return count;
+    }
+
+    /**
+     * @return a buffer positioned after the version
+     */
+    private static ByteBuffer aggregateHeader(ByteBuffer buf) throws IOException {
+        if (!startsWith(buf, AGGREGATE_MAGIC)) {
+            throw new IOException("does not look like an aggregated SezPoz index");
+        }
+        ByteBuffer b = buf.slice();
+        b.position(AGGREGATE_MAGIC.length);
+        int version = b.get() & 0xff;
+        if (version != AGGREGATE_VERSION) {
+            throw new IOException("unsupported index version " + version + "; try a newer version of SezPoz");
+        }
+        return b;
+    }
+
+    /**
+     * Finds entries by the value of an attribute using the index written for it, if any.
+     * @param elements as returned by {@link #read}
+     * @param attribute name of an annotation attribute
+     * @param value a value as for {@link #keys}
+     * @return ascending positions in {@code elements} of entries with that value (or an array value containing it),
+     *         or null if the attribute was not indexed
+     * @throws IOException if the index is malformed
+     */
+    public static int[] lookup(List<SerAnnotatedElement> elements, String attribute, Object value) throws IOException {
+        if (!(elements instanceof Entries)) {
+            return null;
+        }
+        AttributeIndex index = ((Entries) elements).attributes.get(attribute);
+        if (index == null) {
+            return null;
+        }
+        Set<Integer> positions = new TreeSet<Integer>();
+        Map<String,int[]> byKey = index.byKey();
+        for (String key : keys(value)) {
+            int[] matches = byKey.get(key);
+            if (matches != null) {
+                for (int i : matches) {
+                    positions.add(i);
+                }
+            }
+        }
+        int[] result = new int[positions.size()];
+        int i = 0;
+        for (int p : positions) {
+            result[i++] = p;
+        }
+        return result;
+    }
+
+    /**
+     * Finds entries by class name using binary search, decoding only the entries probed.
+     * @param elements as returned by {@link #read}
+     * @param className a class name (format e.g. "x.y.Z$I"), or a prefix of one
+     * @param prefix true to match any class name starting with {@code className}, false to match it exactly
+     * @return ascending positions in {@code elements} of entries for the matching classes or their members,
+     *         or null if the entries are not known to be sorted, in which case the caller must check each one
+     * @throws IOException if the index is malformed
+     */
+    public static int[] lookupClassName(List<SerAnnotatedElement> elements, String className, boolean prefix) throws IOException {
+        if (!(elements instanceof Entries) || !((Entries) elements).sorted) {
+            return null;
+        }
+        Entries entries = (Entries) elements;
+        try {
+            // Sorting by key also sorts by class name, since '#' sorts before any character of a class name.
+            int low = 0, high = entries.size();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (entries.className(mid).compareTo(className) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            int end = low;
+            while (end < entries.size()) {
+                String found = entries.className(end);
+                if (prefix ? !found.startsWith(className) : !found.equals(className)) {
+                    break;
+                }
+                end++;
+            }
+            int[] result = new int[end - low];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = low + i;
+            }
+            return result;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException x) {
+            throw new IOException("truncated or corrupt index", x);
+        }
+    }
+
+    /**
+     * Finds which attributes were indexed when a file was written.
+     * @param elements as returned by {@link #read}
+     * @return default value (or null) by attribute name, suitable for {@link #write(OutputStream, Collection, Map)}
+     * @throws IOException if the index is malformed
+     */
+    public static Map<String,Object> indexedAttributes(List<SerAnnotatedElement> elements) throws IOException {
+        Map<String,Object> result = new TreeMap<String,Object>();
+        if (elements instanceof Entries) {
+            for (Map.Entry<String,AttributeIndex> entry : ((Entries) elements).attributes.entrySet()) {
+                result.put(entry.getKey(), entry.getValue().defaultValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Computes the keys under which an attribute value is indexed.
+     * Primitives and strings use {@link String#valueOf}, enum constants their name, and classes their binary name.
+     * @param value a value as found in {@link SerAnnotatedElement#values()}, or the corresponding live value
+     * @return one key, or one for each element of an array value
+     */
+    public static List<String> keys(Object value) {
+        if (value instanceof List<?>) {
+            List<String> keys = new ArrayList<String>();
+            for (Object o : (List<?>) value) {
+                keys.add(key(o));
+            }
+            return keys;
+        } else if (value != null && value.getClass().isArray()) {
+            int length = Array.getLength(value);
+            List<String> keys = new ArrayList<String>(length);
+            for (int i = 0; i < length; i++) {
+                keys.add(key(Array.get(value, i)));
+            }
+            return keys;
+        } else {
+            return Collections.singletonList(key(value));
+        }
+    }
+
+    private static String key(Object value) {
+        if (value instanceof SerEnumConst) {
+            return ((SerEnumConst) value).constName;
+        } else if (value instanceof Enum<?>) {
+            return ((Enum<?>) value).name();
+        } else if (value instanceof SerTypeConst) {
+            return ((SerTypeConst) value).name;
+        } else if (value instanceof Class<?>) {
+            return ((Class<?>) value).getName();
+        } else {
+            return String.valueOf(value);
+        }
+    }
+
+    private static boolean startsWith(ByteBuffer buf, byte[] magic) {
+        if (buf.remaining() < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (buf.get(buf.position() + i) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<SerAnnotatedElement> readSerialized(InputStream is) throws IOException {
+        List<SerAnnotatedElement> elements = new ArrayList<SerAnnotatedElement>();
+        ObjectInputStream ois = new ObjectInputStream(is);
+        while (true) {
+            SerAnnotatedElement el;
+            try {
+                el = (SerAnnotatedElement) ois.readObject();
+            } catch (ClassNotFoundException cnfe) {
+                throw new IOException(cnfe.toString(), cnfe);
+            }
+            if (el == null) {
+                return elements;
+            }
+            elements.add(el);
+        }
+    }
+
+    /**
+     * Writes an index file in the binary format.
+     * @param os a stream to write to (not closed)
+     * @param elements elements to write, in order
+     * @throws IOException if writing fails
+     */
+    public static void write(OutputStream os, Collection<SerAnnotatedElement> elements) throws IOException {
+        write(os, elements, Collections.<String,Object>emptyMap());
+    }
+
+    /**
+     * Writes an index file in the binary format, with an index of entries by some attributes.
+     * @param os a stream to write to (not closed)
+     * @param elements elements to write, in order
+     * @param indexedAttributes names of attributes to index, each with its default value (or null)
+     *                          to use for elements which do not specify it
+     * @throws IOException if writing fails
+     * @see #lookup
+     */
+    public static void write(OutputStream os, Collection<SerAnnotatedElement> elements, Map<String,Object> indexedAttributes) throws IOException {
+        new Encoder().write(os, elements, indexedAttributes);
+    }
+
+    /**
+     * Writes an aggregated index file, containing the binary index of several annotations.
+     * @param os a stream to write to (not closed)
+     * @param elementsByAnnotation elements to write for each annotation name, in order
+     * @throws IOException if writing fails
+     */
+    public static void writeAggregate(OutputStream os, Map<String,? extends Collection<SerAnnotatedElement>> elementsByAnnotation) throws IOException {
+        writeAggregate(os, elementsByAnnotation, Collections.<String,Map<String,Object>>emptyMap());
+    }
+
+    /**
+     * Writes an aggregated index file, containing the binary index of several annotations.
+     * @param os a stream to write to (not closed)
+     * @param elementsByAnnotation elements to write for each annotation name, in order
+     * @param indexedAttributesByAnnotation attributes to index for some annotation names, as for {@link #write(OutputStream, Collection, Map)}
+     * @throws IOException if writing fails
+     */
+    public static void writeAggregate(OutputStream os, Map<String,? extends Collection<SerAnnotatedElement>> elementsByAnnotation,
+            Map<String,Map<String,Object>> indexedAttributesByAnnotation) throws IOException {
+        List<byte[]> names = new ArrayList<byte[]>();
+        List<ByteArrayOutputStream> sections = new ArrayList<ByteArrayOutputStream>();
+        Set<String> keys = new HashSet<String>();
+        for (Map.Entry<String,? extends Collection<SerAnnotatedElement>> entry : elementsByAnnotation.entrySet()) {
+            for (SerAnnotatedElement el : entry.getValue()) {
+                keys.add(BloomFilter.key(entry.getKey(), el.className));
+            }
+        }
+        BloomFilter summary = BloomFilter.create(keys.size());
+        summary.addAll(keys);
+        int headerLength = AGGREGATE_MAGIC.length + 1 + summary.size() + 4;
+        for (Map.Entry<String,? extends Collection<SerAnnotatedElement>> entry : elementsByAnnotation.entrySet()) {
+            byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            names.add(name);
+            headerLength += 4 + name.length + 4 + 4 + 4;
+            ByteArrayOutputStream section = new ByteArrayOutputStream();
+            Map<String,Object> indexedAttributes = indexedAttributesByAnnotation.get(entry.getKey());
+            write(section, entry.getValue(), indexedAttributes != null ? indexedAttributes : Collections.<String,Object>emptyMap());
+            sections.add(section);
+        }
+        DataOutputStream out = new DataOutputStream(os);
+        out.write(AGGREGATE_MAGIC);
+        out.writeByte(AGGREGATE_VERSION);
+        summary.write(out);
+        out.writeInt(names.size());
+        int offset = headerLength;
+        for (int i = 0; i < names.size(); i++) {
+            out.writeInt(names.get(i).length);
+            out.write(names.get(i));
+            out.writeInt(offset);
+            out.writeInt(sections.get(i).size());
+            CRC32 crc = new CRC32();
+            crc.update(sections.get(i).toByteArray());
+            out.writeInt((int) crc.getValue());
+            offset += sections.get(i).size();
+        }
+        for (ByteArrayOutputStream section : sections) {
+            section.writeTo(out);
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes an index file in the serialized format understood by SezPoz 1.17 and earlier.
+     * @param os a stream to write to (not closed)
+     * @param elements elements to write, in order
+     * @throws IOException if writing fails
+     */
+    public static void writeSerialized(OutputStream os, Collection<SerAnnotatedElement> elements) throws IOException {
+        ObjectOutputStream oos = new ObjectOutputStream(os);
+        for (SerAnnotatedElement el : elements) {
+            oos.writeObject(el);
+        }
+        oos.writeObject(null);
+        oos.flush();
+    }
+
+    private static final class Encoder {
+
+        private final Map<String,Integer> strings = new HashMap<String,Integer>();
+        private final List<String> stringTable = new ArrayList<String>();
+
+        void write(OutputStream os, Collection<SerAnnotatedElement> elements, Map<String,Object> indexedAttributes) throws IOException {
+            ByteArrayOutputStream entries = new ByteArrayOutputStream();
+            DataOutputStream entriesData = new DataOutputStream(entries);
+            int[] offsets = new int[elements.size()];
+            boolean sorted = true;
+            String lastKey = null;
+            int i = 0;
+            for (SerAnnotatedElement el : elements) {
+                offsets[i++] = entriesData.size();
+                String key = el.key();
+                if (lastKey != null && lastKey.compareTo(key) >= 0) {
+                    sorted = false;
+                }
+                lastKey = key;
+                entriesData.writeInt(string(el.className));
+                entriesData.writeInt(el.memberName != null ? string(el.memberName) : -1);
+                entriesData.writeByte(el.isMethod ? 1 : 0);
+                ByteArrayOutputStream values = new ByteArrayOutputStream();
+                writeValues(new DataOutputStream(values), el.values());
+                entriesData.writeInt(values.size());
+                values.writeTo(entriesData);
+            }
+            entriesData.flush();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DataOutputStream bodyData = new DataOutputStream(body);
+            bodyData.writeInt(offsets.length);
+            bodyData.writeByte(sorted ? 1 : 0);
+            bodyData.writeInt(entries.size());
+            for (int offset : offsets) {
+                bodyData.writeInt(offset);
+            }
+            entries.writeTo(bodyData);
+            if (!indexedAttributes.isEmpty()) {
+                bodyData.writeInt(indexedAttributes.size());
+                for (Map.Entry<String,Object> entry : indexedAttributes.entrySet()) {
+                    ByteArrayOutputStream section = new ByteArrayOutputStream();
+                    writeAttributeIndex(new DataOutputStream(section), elements, entry.getKey(), entry.getValue());
+                    bodyData.writeByte('a');
+                    bodyData.writeInt(section.size());
+                    section.writeTo(bodyData);
+                }
+            }
+            bodyData.flush();
+            DataOutputStream out = new DataOutputStream(os);
+            out.write(BINARY_MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(stringTable.size());
+            for (String s : stringTable) {
+                byte[] b = s.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(b.length);
+                out.write(b);
+            }
+            body.writeTo(out);
+            out.flush();
+        }
+
+        private void writeAttributeIndex(DataOutputStream out, Collection<SerAnnotatedElement> elements, String attribute, Object defaultValue) throws IOException {
+            Map<String,List<Integer>> byKey = new TreeMap<String,List<Integer>>();
+            int position = 0;
+            for (SerAnnotatedElement el : elements) {
+                Object value = el.values().get(attribute);
+                if (value == null) {
+                    value = defaultValue;
+                }
+                if (value != null) {
+                    for (String key : keys(value)) {
+                        List<Integer> positions = byKey.get(key);
+                        if (positions == null) {
+                            positions = new ArrayList<Integer>();
+                            byKey.put(key, positions);
+                        }
+                        if (positions.isEmpty() || positions.get(positions.size() - 1) != position) {
+                            positions.add(position);
+                        }
+                    }
+                }
+                position++;
+            }
+            out.writeInt(string(attribute));
+            if (defaultValue != null) {
+                out.writeByte(1);
+                writeValue(out, defaultValue);
+            } else {
+                out.writeByte(0);
+            }
+            out.writeInt(byKey.size());
+            for (Map.Entry<String,List<Integer>> entry : byKey.entrySet()) {
+                out.writeInt(string(entry.getKey()));
+                out.writeInt(entry.getValue().size());
+                for (int p : entry.getValue()) {
+                    out.writeInt(p);
+                }
+            }
+            out.flush();
+        }
+
+        private int string(String s) {
+            Integer index = strings.get(s);
+            if (index == null) {
+                index = stringTable.size();
+                strings.put(s, index);
+                stringTable.add(s);
+            }
+            return index;
+        }
+
+        private void writeValues(DataOutputStream out, Map<String,Object> values) throws IOException {
+            out.writeInt(values.size());
+            for (Map.Entry<String,Object> entry : values.entrySet()) {
+                out.writeInt(string(entry.getKey()));
+                writeValue(out, entry.getValue());
+            }
+        }
+
+        private void writeValue(DataOutputStream out, Object v) throws IOException {
+            if (v instanceof Boolean) {
+                out.writeByte('Z');
+                out.writeBoolean((Boolean) v);
+            } else if (v instanceof Byte) {
+                out.writeByte('B');
+                out.writeByte((Byte) v);
+            } else if (v instanceof Character) {
+                out.writeByte('C');
+                out.writeChar((Character) v);
+            } else if (v instanceof Short) {
+                out.writeByte('S');
+                out.writeShort((Short) v);
+            } else if (v instanceof Integer) {
+                out.writeByte('I');
+                out.writeInt((Integer) v);
+            } else if (v instanceof Long) {
+                out.writeByte('J');
+                out.writeLong((Long) v);
+            } else if (v instanceof Float) {
+                out.writeByte('F');
+                out.writeFloat((Float) v);
+            } else if (v instanceof Double) {
+                out.writeByte('D');
+                out.writeDouble((Double) v);
+            } else if (v instanceof String) {
+                out.writeByte('s');
+                out.writeInt(string((String) v));
+            } else if (v instanceof SerTypeConst) {
+                out.writeByte('c');
+                out.writeInt(string(((SerTypeConst) v).name));
+            } else if (v instanceof SerEnumConst) {
+                SerEnumConst e = (SerEnumConst) v;
+                out.writeByte('e');
+                out.writeInt(string(e.enumName));
+                out.writeInt(string(e.constName));
+            } else if (v instanceof SerAnnConst) {
+                SerAnnConst a = (SerAnnConst) v;
+                out.writeByte('@');
+                out.writeInt(string(a.name));
+                writeValues(out, a.values);
+            } else if (v instanceof List<?>) {
+                List<?> l = (List<?>) v;
+                out.writeByte('[');
+                out.writeInt(l.size());
+                for (Object o : l) {
+                    writeValue(out, o);
+                }
+            } else {
+                throw new IOException("cannot encode " + v + " of " + v.getClass());
+            }
+        }
+
+    }
+
+    /**
+     * Result of {@link #read}.
+     * Entries in the compact format are decoded individually on first access, possibly from several threads.
+     */
+    private static final class Entries extends AbstractList<SerAnnotatedElement> implements RandomAccess {
+
+        private final AtomicReferenceArray<SerAnnotatedElement> elements;
+        /** source of undecoded {@link #elements}, or null */
+        private final Decoder decoder;
+        /** whether entries are known to be in order of {@link SerAnnotatedElement#key} */
+        final boolean sorted;
+        /** secondary indices by attribute name */
+        final Map<String,AttributeIndex> attributes;
+
+        Entries(List<SerAnnotatedElement> elements) {
+            this.elements = new AtomicReferenceArray<SerAnnotatedElement>(elements.toArray(new SerAnnotatedElement[0]));
+            decoder = null;
+            sorted = false;
+            attributes = Collections.emptyMap();
+        }
+
+        Entries(int count, Decoder decoder, boolean sorted, Map<String,AttributeIndex> attributes) {
+            elements = new AtomicReferenceArray<SerAnnotatedElement>(count);
+            this.decoder = decoder;
+            this.sorted = sorted;
+            this.attributes = attributes;
+        }
+
+        @Override public SerAnnotatedElement get(int index) {
+            SerAnnotatedElement el = elements.get(index);
+            if (el == null) {
+                try {
+                    el = decoder.element(index);
+                } catch (BufferUnderflowException | IndexOutOfBoundsException | InternalError x) {
+                    // InternalError if a mapped file has shrunk.
+                    throw new IllegalStateException("truncated or corrupt index", x);
+                }
+                if (!elements.compareAndSet(index, null, el)) {
+                    // Another thread decoded it first; use its copy so all callers share one element.
+                    el = elements.get(index);
+                }
+            }
+            return el;
+        }
+
+        /**
+         * Gets the class name of an entry without necessarily decoding the rest of it.
+         */
+        String className(int index) {
+            SerAnnotatedElement el = elements.get(index);
+            return el != null ? el.className : decoder.className(index);
+        }
+
+        @Override public int size() {
+            return elements.length();
+        }
+
+    }
+
+    /**
+     * One {@code a} section, decoded on first use.
+     */
+    private static final class AttributeIndex {
+
+        private final Decoder decoder;
+        /** position just after the attribute name */
+        private final int offset;
+        private Object defaultValue;
+        private Map<String,int[]> byKey;
+
+        AttributeIndex(Decoder decoder, int offset) {
+            this.decoder = decoder;
+            this.offset = offset;
+        }
+
+        synchronized Object defaultValue() throws IOException {
+            decode();
+            return defaultValue;
+        }
+
+        synchronized Map<String,int[]> byKey() throws IOException {
+            decode();
+            return byKey;
+        }
+
+        private void decode() throws IOException {
+            if (byKey == null) {
+                ByteBuffer b = decoder.buf.duplicate();
+                b.position(offset);
+                try {
+                    defaultValue = b.get() != 0 ? decoder.readValue(b) : null;
+                    int count = count(b, 8);
+                    Map<String,int[]> m = new HashMap<String,int[]>(count * 2);
+                    for (int i = 0; i < count; i++) {
+                        String key = decoder.string(b.getInt());
+                        int[] positions = new int[count(b, 4)];
+                        for (int j = 0; j < positions.length; j++) {
+                            positions[j] = b.getInt();
+                        }
+                        m.put(key, positions);
+                    }
+                    byKey = m;
+                } catch (BufferUnderflowException | IndexOutOfBoundsException | InternalError x) {
+                    throw new IOException("truncated or corrupt index", x);
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Reads the compact format.
+     * Only the header and offset tables are read up front; strings, each entry (via {@link Entries#get}),
+     * and each entry's values (via {@link SerAnnotatedElement#values}) are decoded on first use, possibly from several threads.
+     */
+    static final class Decoder {
+
+        private final ByteBuffer buf;
+        /** offsets of string table entries in {@link #buf}; decoded on demand */
+        private final int[] stringOffsets;
+        private final String[] strings;
+        /** positions in {@link #buf} of the entry offset table, the first entry, and the end of the last */
+        private int offsetTable, firstEntry, entriesEnd;
+
+        Decoder(ByteBuffer buf) throws IOException {
+            this.buf = buf;
+            buf.position(BINARY_MAGIC.length);
+            int version = buf.get() & 0xff;
+            if (version != VERSION) {
+                throw new IOException("unsupported index version " + version + "; try a newer version of SezPoz");
+            }
+            int count = count(buf, 4);
+            stringOffsets = new int[count];
+            strings = new String[count];
+            for (int i = 0; i < count; i++) {
+                stringOffsets[i] = buf.position();
+                int length = count(buf, 1);
+                buf.position(buf.position() + length);
+            }
+        }
+
+        List<SerAnnotatedElement> entries() throws IOException {
+            int count = buf.getInt();
+            boolean sorted = (buf.get() & 1) != 0;
+            int length = buf.getInt();
+            offsetTable = buf.position();
+            if (count < 0 || count > (buf.limit() - offsetTable) / 4) {
+                throw new IOException("truncated or corrupt index");
+            }
+            firstEntry = offsetTable + 4 * count;
+            if (length < 0 || length > buf.limit() - firstEntry) {
+                throw new IOException("truncated or corrupt index");
+            }
+            entriesEnd = firstEntry + length;
+            buf.position(entriesEnd);
+            Map<String,AttributeIndex> attributes = Collections.emptyMap();
+            if (buf.remaining() >= 4) {
+                int sectionCount = buf.getInt();
+                for (int i = 0; i < sectionCount; i++) {
+                    byte kind = buf.get();
+                    int sectionLength = buf.getInt();
+                    int offset = buf.position();
+                    if (sectionLength < 0 || sectionLength > buf.limit() - offset) {
+                        throw new IOException("truncated or corrupt index");
+                    }
+                    if (kind == 'a') {
+                        if (attributes.isEmpty()) {
+                            attributes = new HashMap<String,AttributeIndex>();
+                        }
+                        attributes.put(string(buf.getInt(offset)), new AttributeIndex(this, offset + 4));
+                    }
+                    buf.position(offset + sectionLength);
+                }
+            }
+            return new Entries(count, this, sorted, attributes);
+        }
+
+        /**
+         * @return the position of an entry in the buffer
+         */
+        private int entry(int index) {
+            int offset = buf.getInt(offsetTable + 4 * index);
+            if (offset < 0 || offset > entriesEnd - firstEntry - 13) {
+                throw new IndexOutOfBoundsException("bad offset " + offset + " for entry #" + index);
+            }
+            return firstEntry + offset;
+        }
+
+        /**
+         * Decodes just the class name of an entry, as needed for a binary search.
+         */
+        String className(int index) {
+            return string(buf.getInt(entry(index)));
+        }
+
+        /**
+         * Decodes one entry, but not its values.
+         */
+        SerAnnotatedElement element(int index) {
+            int position = entry(index);
+            String className = string(buf.getInt(position));
+            int member = buf.getInt(position + 4);
+            boolean isMethod = (buf.get(position + 8) & 1) != 0;
+            int length = buf.getInt(position + 9);
+            if (length < 0 || length > entriesEnd - position - 13) {
+                throw new IndexOutOfBoundsException("bad length " + length + " for entry #" + index);
+            }
+            return new SerAnnotatedElement(className, member == -1 ? null : string(member), isMethod, this, position + 13);
+        }
+
+        /**
+         * Decodes the values of one entry.
+         * @param offset the position of the values in the buffer
+         */
+        TreeMap<String,Object> values(int offset) throws IOException {
+            ByteBuffer b = buf.duplicate();
+            b.position(offset);
+            try {
+                return readValues(b);
+            } catch (BufferUnderflowException | IndexOutOfBoundsException | InternalError x) {
+                throw new IOException("truncated or corrupt index", x);
+            }
+        }
+
+        String string(int index) {
+            String s = strings[index];
+            if (s == null) {
+                int offset = stringOffsets[index];
+                int length = buf.getInt(offset);
+                if (buf.hasArray()) {
+                    s = new String(buf.array(), buf.arrayOffset() + offset + 4, length, StandardCharsets.UTF_8);
+                } else {
+                    // direct or mapped buffer
+                    byte[] b = new byte[length];
+                    ByteBuffer dup = buf.duplicate();
+                    dup.position(offset + 4);
+                    dup.get(b);
+                    s = new String(b, StandardCharsets.UTF_8);
+                }
+                strings[index] = s;
+            }
+            return s;
+        }
+
+        private TreeMap<String,Object> readValues(ByteBuffer b) throws IOException {
+            TreeMap<String,Object> values = new TreeMap<String,Object>();
+            int count = count(b, 5);
+            for (int i = 0; i < count; i++) {
+                String name = string(b.getInt());
+                values.put(name, readValue(b));
+            }
+            return values;
+        }
+
+        Object readValue(ByteBuffer b) throws IOException {
+            byte tag = b.get();
+            switch (tag) {
+            case 'Z':
+                return b.get() != 0;
+            case 'B':
+                return b.get();
+            case 'C':
+                return b.getChar();
+            case 'S':
+                return b.getShort();
+            case 'I':
+                return b.getInt();
+            case 'J':
+                return b.getLong();
+            case 'F':
+                return b.getFloat();
+            case 'D':
+                return b.getDouble();
+            case 's':
+                return string(b.getInt());
+            case 'c':
+                return new SerTypeConst(string(b.getInt()));
+            case 'e':
+                String enumName = string(b.getInt());
+                return new SerEnumConst(enumName, string(b.getInt()));
+            case '@':
+                String annName = string(b.getInt());
+                return new SerAnnConst(annName, readValues(b));
+            case '[':
+                int size = count(b, 1);
+                List<Object> l = new ArrayList<Object>(size);
+                for (int i = 0; i < size; i++) {
+                    l.add(readValue(b));
+                }
+                return l;
+            default:
+                throw new IOException("unknown value tag " + tag);
+            }
+        }
+
+    }
+
+}
@@ -32,11 +32,12 @@
 
 package net.java.sezpoz.impl;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.Writer;
 import java.lang.annotation.ElementType;
@@ -44,14 +45,18 @@ import java.lang.annotation.Inherited;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.net.URI;
 import java.nio.file.NoSuchFileException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
 import javax.annotation.processing.AbstractProcessor;
 import javax.annotation.processing.RoundEnvironment;
 import javax.annotation.processing.SupportedAnnotationTypes;
@@ -65,6 +70,8 @@ import javax.lang.model.element.ExecutableElement;
 import javax.lang.model.element.Modifier;
 import javax.lang.model.element.TypeElement;
 import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.TypeKind;
 import javax.lang.model.type.TypeMirror;
 import javax.lang.model.util.ElementFilter;
 import javax.tools.Diagnostic.Kind;
@@ -74,58 +81,159 @@ import net.java.sezpoz.Indexable;
 
 /**
  * Processor for indexable annotations.
+ * Pass {@code -Asezpoz.serialized=true} to write indices in the format
+ * understood by SezPoz 1.17 and earlier rather than the compact {@link IndexFile binary format}.
+ * Pass {@code -Asezpoz.aggregate=true} to also write {@link #AGGREGATE_INDEX},
+ * letting the runtime read the indices of all annotations in a JAR at once.
+ * Each index is accompanied by an informational {@code .txt} file, which the runtime never reads;
+ * pass {@code -Asezpoz.txt=summary} to instead write one {@link #SUMMARY} listing all indices,
+ * or {@code -Asezpoz.txt=none} for neither.
+ * <p>Indices are written once, at the end of processing.
+ * Entries already in the output directory are kept if their class is not being compiled
+ * and its class file is still present, so compiling only some sources updates rather than replaces an index.
+ * <p>Pass {@code -Asezpoz.registry=true} to also generate a {@link Registry} class for each annotation,
+ * which {@link net.java.sezpoz.Index} then uses in place of the index file.
+ * Only do so when all uses of the annotation are compiled together, as in a self-contained application;
+ * a registry is ignored at runtime if the annotation is indexed anywhere else.
+ * Registered classes, and any classes enclosing them, must be public.
+ * A registry is generated in the round in which its index first changes, so that it is itself compiled normally;
+ * it is an error for a later round, such as of sources generated by another processor, to change the index again.
+ * <p>Pass e.g. {@code -Asezpoz.annotations=x.Menu,x.Action} to index only the named indexable annotations:
+ * other annotations in the compilation are then skipped by name, without checking whether they are indexable.
+ * The processor still runs on every round, so existing indices are pruned as usual.
+ * <p>Pass {@code -Asezpoz.incremental=true} to declare this processor aggregating to Gradle's incremental compilation.
+ * Gradle then recompiles only changed sources, but passes unchanged classes with indexable annotations back through
+ * the processor, which can only see annotations they retain:
+ * indexable annotations should then have {@link RetentionPolicy#CLASS} retention rather than the usual {@link RetentionPolicy#SOURCE}.
  */
 @SupportedAnnotationTypes("*")
-@SupportedOptions("sezpoz.quiet")
+@SupportedOptions({"sezpoz.quiet", "sezpoz.serialized", "sezpoz.aggregate", "sezpoz.incremental", "sezpoz.annotations", "sezpoz.txt", "sezpoz.registry"})
 public class Indexer extends AbstractProcessor {
 
+    /** option by which a processor registered as {@code dynamic} declares itself aggregating to Gradle */
+    private static final String GRADLE_AGGREGATING = "org.gradle.annotation.processing.aggregating";
+
     public static final String METAINF_ANNOTATIONS = "META-INF/annotations/";
+    /** optional index of all annotations in one JAR, in addition to the per-annotation files */
+    public static final String AGGREGATE_INDEX = "META-INF/annotations.index";
+    /** optional human-readable listing of all indices, instead of a {@code .txt} file next to each */
+    public static final String SUMMARY = "META-INF/annotations.txt";
+    /** number of entries handled by each method of a generated {@link Registry} */
+    private static final int REGISTRY_CHUNK = 100;
+    private static final String TXT_HEADER = "# informational; use java -jar sezpoz.jar to see authoritative contents\n";
 
     /** public for ServiceLoader */
     public Indexer() {}
 
+    /** uses found so far in all rounds, by indexable annotation name and then {@link SerAnnotatedElement#key} */
+    private final Map<String,Map<String,SerAnnotatedElement>> output = new TreeMap<String,Map<String,SerAnnotatedElement>>();
+    /** elements from which each index is generated */
+    private final Map<String,Collection<Element>> originatingElementsByAnn = new HashMap<String,Collection<Element>>();
+    /** attributes to index by and their defaults, by indexable annotation name */
+    private final Map<String,Map<String,Object>> indexedAttributesByAnn = new HashMap<String,Map<String,Object>>();
+    /** binary names of all classes compiled in any round, whose entries in existing indices are therefore superseded */
+    private final Set<String> compiledClasses = new HashSet<String>();
+    /** qualified names of annotation types found not to be indexable, so checked only once per compilation */
+    private final Set<String> notIndexable = new HashSet<String>();
+    /** results of {@link #classExists} so far, by binary class name */
+    private final Map<String,Boolean> classFiles = new HashMap<String,Boolean>();
+    /** entries of each {@link Registry} generated so far, by indexable annotation name */
+    private final Map<String,List<SerAnnotatedElement>> registries = new HashMap<String,List<SerAnnotatedElement>>();
+
+    /**
+     * @return qualified names of the annotations to index as given by {@code -Asezpoz.annotations}, or null for all
+     */
+    private Set<String> onlyAnnotations() {
+        String annotations = processingEnv.getOptions().get("sezpoz.annotations");
+        if (annotations == null) {
+            return null;
+        }
+        Set<String> types = new HashSet<String>();
+        for (String annotation : annotations.split(",")) {
+            if (!annotation.trim().isEmpty()) {
+                types.add(annotation.trim());
+            }
+        }
+        return types;
+    }
+
+    @Override
+    public Set<String> getSupportedOptions() {
+        Set<String> options = new HashSet<String>(super.getSupportedOptions());
+        if (processingEnv != null && Boolean.parseBoolean(processingEnv.getOptions().get("sezpoz.incremental"))) {
+            options.add(GRADLE_AGGREGATING);
+        }
+        return options;
+    }
+
     @Override
     public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
         if (roundEnv.processingOver()) {
-            // TODO we should not write until processingOver
+            write();
             return false;
         }
+        boolean incremental = Boolean.parseBoolean(processingEnv.getOptions().get("sezpoz.incremental"));
+        Set<String> only = onlyAnnotations();
         for (Element indexable : roundEnv.getElementsAnnotatedWith(Indexable.class)) {
             String error = verifyIndexable(indexable);
             if (error != null) {
                 processingEnv.getMessager().printMessage(Kind.ERROR, error, indexable);
             } else {
                 Retention retention = indexable.getAnnotation(Retention.class);
-                if (retention == null || retention.value() != RetentionPolicy.SOURCE) {
+                boolean source = retention != null && retention.value() == RetentionPolicy.SOURCE;
+                if (incremental && source) {
+                    processingEnv.getMessager().printMessage(Kind.WARNING, "should not be marked @Retention(RetentionPolicy.SOURCE) when processed incrementally", indexable);
+                } else if (!incremental && !source) {
                     processingEnv.getMessager().printMessage(Kind.WARNING, "should be marked @Retention(RetentionPolicy.SOURCE)", indexable);
                 }
+                if (only != null && !only.contains(((TypeElement) indexable).getQualifiedName().toString())) {
+                    processingEnv.getMessager().printMessage(Kind.WARNING, "will not be indexed unless listed in -Asezpoz.annotations", indexable);
+                }
             }
         }
-        // map from indexable annotation names, to actual uses
-        Map<String,Map<String,SerAnnotatedElement>> output = new TreeMap<String,Map<String,SerAnnotatedElement>>();
-        Map<String,Collection<Element>> originatingElementsByAnn = new HashMap<String,Collection<Element>>();
-        scan(annotations, originatingElementsByAnn, roundEnv, output);
-        write(output, originatingElementsByAnn);
+        for (Element root : roundEnv.getRootElements()) {
+            addCompiledClasses(root);
+        }
+        scan(annotations, roundEnv, only);
+        if (Boolean.parseBoolean(processingEnv.getOptions().get("sezpoz.registry"))) {
+            writeRegistries();
+        }
         return false;
     }
 
+    private void addCompiledClasses(Element element) {
+        if (element instanceof TypeElement) {
+            compiledClasses.add(processingEnv.getElementUtils().getBinaryName((TypeElement) element).toString());
+            for (Element nested : element.getEnclosedElements()) {
+                addCompiledClasses(nested);
+            }
+        }
+    }
+
     @Override
     public SourceVersion getSupportedSourceVersion() {
         return SourceVersion.latest();
     }
 
-    private void scan(Set<? extends TypeElement> annotations, Map<String,Collection<Element>> originatingElementsByAnn,
-            RoundEnvironment roundEnv, Map<String,Map<String,SerAnnotatedElement>> output) {
+    /**
+     * @param only as from {@link #onlyAnnotations}
+     */
+    private void scan(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv, Set<String> only) {
         for (TypeElement ann : annotations) {
+            String qualifiedName = ann.getQualifiedName().toString();
+            if (notIndexable.contains(qualifiedName) || (only != null && !only.contains(qualifiedName))) {
+                continue;
+            }
+            // Not cached, since a mirror from an earlier round may refer to stale types.
             AnnotationMirror indexable = null;
-            for (AnnotationMirror _indexable : processingEnv.getElementUtils().getAllAnnotationMirrors(ann)) {
-                if (processingEnv.getElementUtils().getBinaryName((TypeElement) _indexable.getAnnotationType().asElement()).
-                        contentEquals(Indexable.class.getName())) {
+            for (AnnotationMirror _indexable : ann.getAnnotationMirrors()) {
+                if (((TypeElement) _indexable.getAnnotationType().asElement()).getQualifiedName().contentEquals(Indexable.class.getName())) {
                     indexable = _indexable;
                     break;
                 }
             }
             if (indexable == null) {
+                notIndexable.add(qualifiedName);
                 continue;
             }
             String annName = processingEnv.getElementUtils().getBinaryName(ann).toString();
@@ -133,6 +241,7 @@ public class Indexer extends AbstractProcessor {
             if (originatingElements == null) {
                 originatingElements = new ArrayList<Element>();
                 originatingElementsByAnn.put(annName, originatingElements);
+                indexedAttributesByAnn.put(annName, indexedAttributes(ann, indexable));
             }
             for (Element elt : roundEnv.getElementsAnnotatedWith(ann)) {
                 AnnotationMirror marked = null;
@@ -167,58 +276,542 @@ public class Indexer extends AbstractProcessor {
         }
     }
 
-    private void write(Map<String,Map<String,SerAnnotatedElement>> output, Map<String,Collection<Element>> originatingElementsByAnn) {
-        for (Map.Entry<String,Map<String,SerAnnotatedElement>> outputEntry : output.entrySet()) {
-            String annName = outputEntry.getKey();
+    /**
+     * Finds the attributes named in {@link Indexable#indexedBy}.
+     * @return default values (or null) by attribute name
+     */
+    private Map<String,Object> indexedAttributes(TypeElement ann, AnnotationMirror indexable) {
+        Map<String,Object> indexedAttributes = new TreeMap<String,Object>();
+        for (Map.Entry<? extends ExecutableElement,? extends AnnotationValue> entry : indexable.getElementValues().entrySet()) {
+            if (!entry.getKey().getSimpleName().contentEquals("indexedBy")) {
+                continue;
+            }
+            for (Object attribute : (List<?>) entry.getValue().getValue()) {
+                String name = (String) ((AnnotationValue) attribute).getValue();
+                for (ExecutableElement m : ElementFilter.methodsIn(ann.getEnclosedElements())) {
+                    if (m.getSimpleName().contentEquals(name)) {
+                        AnnotationValue defaultValue = m.getDefaultValue();
+                        indexedAttributes.put(name, defaultValue != null ? translate(defaultValue.getValue()) : null);
+                    }
+                }
+            }
+        }
+        return indexedAttributes;
+    }
+
+    /**
+     * An index as it will be written at the end of processing.
+     */
+    private static final class Merged {
+        /** by {@link SerAnnotatedElement#key} */
+        final Map<String,SerAnnotatedElement> elements;
+        /** whether anything was added or removed, so that the index must be written */
+        final boolean rewrite;
+        final Map<String,Object> indexedAttributes;
+        final Collection<Element> originatingElements;
+        Merged(Map<String,SerAnnotatedElement> elements, boolean rewrite, Map<String,Object> indexedAttributes, Collection<Element> originatingElements) {
+            this.elements = elements;
+            this.rewrite = rewrite;
+            this.indexedAttributes = indexedAttributes;
+            this.originatingElements = originatingElements;
+        }
+    }
+
+    /**
+     * Combines the uses found so far with any indices in the output directory.
+     * Entries from an existing index are kept unless their class was compiled again
+     * (in which case it is indexed afresh, or the annotation was removed) or its class file is gone (the class was deleted).
+     * Indices of annotations excluded by {@code -Asezpoz.annotations}, whose uses were not scanned, are omitted.
+     * @return indices by annotation name
+     */
+    private Map<String,Merged> merge() {
+        Map<String,List<SerAnnotatedElement>> oldAggregate = readAggregate();
+        Set<String> annNames = new TreeSet<String>(output.keySet());
+        annNames.addAll(existingIndices());
+        annNames.addAll(oldAggregate.keySet());
+        Set<String> only = onlyAnnotations();
+        if (only != null) {
+            Set<String> binaryNames = new HashSet<String>();
+            for (String name : only) {
+                TypeElement ann = processingEnv.getElementUtils().getTypeElement(name);
+                binaryNames.add(ann != null ? processingEnv.getElementUtils().getBinaryName(ann).toString() : name);
+            }
+            annNames.retainAll(binaryNames);
+        }
+        Map<String,Merged> merged = new TreeMap<String,Merged>();
+        for (String annName : annNames) {
+            Map<String,SerAnnotatedElement> elements = new TreeMap<String,SerAnnotatedElement>();
+            boolean rewrite = output.containsKey(annName);
+            if (rewrite) {
+                elements.putAll(output.get(annName));
+            }
             try {
-                Map<String,SerAnnotatedElement> elements = outputEntry.getValue();
-                try {
-                    FileObject in = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", METAINF_ANNOTATIONS + annName);
-                    // Read existing annotations, for incremental compilation.
-                    try (InputStream is = in.openInputStream(); ObjectInputStream ois = new ObjectInputStream(is)) {
-                        while (true) {
-                            SerAnnotatedElement el;
-                            try {
-                                el = (SerAnnotatedElement) ois.readObject();
-                            } catch (ClassNotFoundException cnfe) {
-                                throw new IOException(cnfe.toString());
-                            }
-                            if (el == null) {
-                                break;
-                            }
-                            if (!elements.containsKey(el.key())) {
-                                elements.put(el.key(), el);
-                            }
+                List<SerAnnotatedElement> old = read(annName);
+                if (old == null) {
+                    old = oldAggregate.get(annName);
+                    // Otherwise the index file itself is missing.
+                    rewrite |= old != null;
+                }
+                if (old != null) {
+                    for (SerAnnotatedElement el : old) {
+                        if (elements.containsKey(el.key())) {
+                            continue;
+                        }
+                        if (compiledClasses.contains(el.className) || !classExists(el.className)) {
+                            rewrite = true;
+                        } else {
+                            elements.put(el.key(), el);
                         }
                     }
-                } catch (FileNotFoundException|NoSuchFileException x) {
-                    // OK, created for the first time
                 }
+                Map<String,Object> indexedAttributes = indexedAttributesByAnn.get(annName);
+                if (indexedAttributes == null && old != null) {
+                    indexedAttributes = IndexFile.indexedAttributes(old);
+                }
+                Collection<Element> originatingElements = originatingElementsByAnn.get(annName);
+                if (originatingElements == null) {
+                    originatingElements = new ArrayList<Element>();
+                }
+                merged.put(annName, new Merged(elements, rewrite, indexedAttributes, originatingElements));
+            } catch (IOException x) {
+                processingEnv.getMessager().printMessage(Kind.ERROR, x.toString());
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Generates the {@link Registry} of each annotation whose index has changed, unless done in an earlier round.
+     * Called before processing is over, so that the registries are compiled like any other source.
+     */
+    private void writeRegistries() {
+        for (Map.Entry<String,Merged> entry : merge().entrySet()) {
+            String annName = entry.getKey();
+            Merged m = entry.getValue();
+            if (!m.rewrite) {
+                continue;
+            }
+            List<SerAnnotatedElement> elements = new ArrayList<SerAnnotatedElement>(m.elements.values());
+            List<SerAnnotatedElement> generated = registries.put(annName, elements);
+            if (generated == null) {
+                try {
+                    writeRegistry(annName, elements, m.originatingElements);
+                } catch (IOException x) {
+                    processingEnv.getMessager().printMessage(Kind.ERROR, x.toString());
+                }
+            } else if (!generated.equals(elements)) {
+                processingEnv.getMessager().printMessage(Kind.ERROR, "uses of " + annName +
+                        " changed after its registry was generated in an earlier round; do not use -Asezpoz.registry with processors generating them");
+            }
+        }
+    }
+
+    /**
+     * Writes all indices once processing is over.
+     * Indices with nothing new or stale are left alone; those with only stale entries are left empty.
+     */
+    private void write() {
+        String txt = processingEnv.getOptions().get("sezpoz.txt");
+        if (txt == null) {
+            txt = "each";
+        } else if (!txt.equals("each") && !txt.equals("summary") && !txt.equals("none")) {
+            processingEnv.getMessager().printMessage(Kind.ERROR, "-Asezpoz.txt must be each, summary, or none");
+            return;
+        }
+        Map<String,Collection<SerAnnotatedElement>> all = new TreeMap<String,Collection<SerAnnotatedElement>>();
+        Map<String,Map<String,Object>> allIndexedAttributes = new HashMap<String,Map<String,Object>>();
+        List<Element> allOriginatingElements = new ArrayList<Element>();
+        boolean changed = false;
+        for (Map.Entry<String,Merged> entry : merge().entrySet()) {
+            String annName = entry.getKey();
+            Merged m = entry.getValue();
+            Map<String,SerAnnotatedElement> elements = m.elements;
+            Map<String,Object> indexedAttributes = m.indexedAttributes;
+            Collection<Element> originatingElements = m.originatingElements;
+            all.put(annName, elements.values());
+            allIndexedAttributes.put(annName, indexedAttributes);
+            allOriginatingElements.addAll(originatingElements);
+            if (!m.rewrite) {
+                continue;
+            }
+            try {
+                // If all entries are stale this leaves an empty index, since the Filer cannot delete files.
+                changed = true;
                 FileObject out = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT,
                         "", METAINF_ANNOTATIONS + annName,
-                        originatingElementsByAnn.get(annName).toArray(new Element[0]));
-                try (OutputStream os = out.openOutputStream()) {
-                    ObjectOutputStream oos = new ObjectOutputStream(os);
-                    for (SerAnnotatedElement el : elements.values()) {
-                        oos.writeObject(el);
+                        originatingElements.toArray(new Element[0]));
+                try (OutputStream os = new BufferedOutputStream(out.openOutputStream())) {
+                    if (Boolean.parseBoolean(processingEnv.getOptions().get("sezpoz.serialized"))) {
+                        IndexFile.writeSerialized(os, elements.values());
+                    } else {
+                        IndexFile.write(os, elements.values(), indexedAttributes);
                     }
-                    oos.writeObject(null);
-                    oos.flush();
                 }
-                out = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT,
-                        "", METAINF_ANNOTATIONS + annName + ".txt",
-                        originatingElementsByAnn.get(annName).toArray(new Element[0]));
-                try (Writer w = out.openWriter()) {
-                    w.write("# informational; use java -jar sezpoz.jar to see authoritative contents\n");
-                    for (SerAnnotatedElement el : elements.values()) {
-                        w.write(el.toString());
+                if (txt.equals("each")) {
+                    out = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT,
+                            "", METAINF_ANNOTATIONS + annName + ".txt",
+                            originatingElements.toArray(new Element[0]));
+                    try (Writer w = new BufferedWriter(out.openWriter())) {
+                        w.write(TXT_HEADER);
+                        for (SerAnnotatedElement el : elements.values()) {
+                            w.write(el.toString());
+                            w.write('\n');
+                        }
+                    }
+                }
+            } catch (IOException x) {
+                processingEnv.getMessager().printMessage(Kind.ERROR, x.toString());
+            }
+        }
+        if (txt.equals("summary") && changed) {
+            try {
+                FileObject out = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT,
+                        "", SUMMARY, allOriginatingElements.toArray(new Element[0]));
+                try (Writer w = new BufferedWriter(out.openWriter())) {
+                    w.write(TXT_HEADER);
+                    for (Map.Entry<String,Collection<SerAnnotatedElement>> entry : all.entrySet()) {
+                        if (entry.getValue().isEmpty()) {
+                            continue;
+                        }
                         w.write('\n');
+                        w.write(entry.getKey());
+                        w.write(":\n");
+                        for (SerAnnotatedElement el : entry.getValue()) {
+                            w.write("  ");
+                            w.write(el.toString());
+                            w.write('\n');
+                        }
                     }
                 }
             } catch (IOException x) {
                 processingEnv.getMessager().printMessage(Kind.ERROR, x.toString());
             }
         }
+        if (Boolean.parseBoolean(processingEnv.getOptions().get("sezpoz.aggregate")) && changed) {
+            try {
+                FileObject out = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT,
+                        "", AGGREGATE_INDEX, allOriginatingElements.toArray(new Element[0]));
+                try (OutputStream os = new BufferedOutputStream(out.openOutputStream())) {
+                    IndexFile.writeAggregate(os, all, allIndexedAttributes);
+                }
+            } catch (IOException x) {
+                processingEnv.getMessager().printMessage(Kind.ERROR, x.toString());
+            }
+        } else if (changed) {
+            deleteAggregate();
+        }
+    }
+
+    /**
+     * Generates the {@link Registry} of one annotation.
+     * Reports an error instead if some registered class cannot be referred to from it.
+     */
+    private void writeRegistry(String annName, Collection<SerAnnotatedElement> elements, Collection<Element> originatingElements) throws IOException {
+        List<String> classNames = new ArrayList<String>();
+        boolean ok = true;
+        for (SerAnnotatedElement el : elements) {
+            TypeElement clazz = typeElement(el.className);
+            if (clazz == null) {
+                processingEnv.getMessager().printMessage(Kind.ERROR, "cannot find " + el.className + " to list in the registry of " + annName);
+                ok = false;
+                continue;
+            }
+            for (Element e = clazz; e instanceof TypeElement; e = e.getEnclosingElement()) {
+                if (!e.getModifiers().contains(Modifier.PUBLIC)) {
+                    processingEnv.getMessager().printMessage(Kind.ERROR, "must be public to list " + el.className + " in the registry of " + annName, e);
+                    ok = false;
+                    break;
+                }
+            }
+            classNames.add(clazz.getQualifiedName().toString());
+        }
+        if (!ok) {
+            return;
+        }
+        String name = annName + Registry.SUFFIX;
+        int dot = name.lastIndexOf('.');
+        StringBuilder b = new StringBuilder();
+        if (dot != -1) {
+            b.append("package ").append(name, 0, dot).append(";\n\n");
+        }
+        b.append("/** Generated from the uses of @").append(annName.replace('$', '.')).append(" by SezPoz; do not edit. */\n");
+        b.append("public final class ").append(name, dot + 1, name.length()).append(" extends ").append(Registry.class.getName()).append(" {\n");
+        List<SerAnnotatedElement> els = new ArrayList<SerAnnotatedElement>(elements);
+        // Keep each method well below the bytecode limit.
+        int chunks = (els.size() + REGISTRY_CHUNK - 1) / REGISTRY_CHUNK;
+        b.append("\n    public ").append(name, dot + 1, name.length()).append("() {\n");
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            b.append("        add").append(chunk).append("();\n");
+        }
+        b.append("    }\n");
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            b.append("\n    private void add").append(chunk).append("() {\n");
+            for (SerAnnotatedElement el : els.subList(chunk * REGISTRY_CHUNK, Math.min(els.size(), (chunk + 1) * REGISTRY_CHUNK))) {
+                b.append("        add(");
+                literal(b, el.className);
+                b.append(", ");
+                literal(b, el.memberName);
+                b.append(", ").append(el.isMethod);
+                values(b, el.values());
+                b.append(");\n");
+            }
+            b.append("    }\n");
+        }
+        b.append("\n    @Override\n    public Object create(int index) throws Exception {\n");
+        b.append("        switch (index / ").append(REGISTRY_CHUNK).append(") {\n");
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            b.append("        case ").append(chunk).append(": return create").append(chunk).append("(index);\n");
+        }
+        b.append("        default: throw new IndexOutOfBoundsException(String.valueOf(index));\n");
+        b.append("        }\n    }\n");
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            b.append("\n    private static Object create").append(chunk).append("(int index) throws Exception {\n");
+            b.append("        switch (index) {\n");
+            for (int i = chunk * REGISTRY_CHUNK; i < Math.min(els.size(), (chunk + 1) * REGISTRY_CHUNK); i++) {
+                SerAnnotatedElement el = els.get(i);
+                String clazz = classNames.get(i);
+                b.append("        case ").append(i).append(": return ");
+                if (el.isMethod) {
+                    b.append(clazz).append('.').append(el.memberName).append("();\n");
+                } else if (el.memberName != null) {
+                    b.append(clazz).append('.').append(el.memberName).append(";\n");
+                } else {
+                    b.append("new ").append(clazz).append("();\n");
+                }
+            }
+            b.append("        default: throw new IndexOutOfBoundsException(String.valueOf(index));\n");
+            b.append("        }\n    }\n");
+        }
+        b.append("\n}\n");
+        FileObject out = processingEnv.getFiler().createSourceFile(name, originatingElements.toArray(new Element[0]));
+        try (Writer w = new BufferedWriter(out.openWriter())) {
+            w.write(b.toString());
+        }
+    }
+
+    /**
+     * Finds a class by binary name, which unlike its canonical name may not be split on {@code $}.
+     * @return the class, or null if it cannot be found
+     */
+    private TypeElement typeElement(String binaryName) {
+        for (int i = binaryName.length(); i > 0; i = binaryName.lastIndexOf('$', i - 1)) {
+            TypeElement outer = processingEnv.getElementUtils().getTypeElement(binaryName.substring(0, i));
+            TypeElement clazz = outer != null ? nested(outer, binaryName) : null;
+            if (clazz != null) {
+                return clazz;
+            }
+        }
+        return null;
+    }
+
+    private TypeElement nested(TypeElement outer, String binaryName) {
+        String name = processingEnv.getElementUtils().getBinaryName(outer).toString();
+        if (name.equals(binaryName)) {
+            return outer;
+        }
+        if (!binaryName.startsWith(name + '$')) {
+            return null;
+        }
+        for (TypeElement inner : ElementFilter.typesIn(outer.getEnclosedElements())) {
+            TypeElement clazz = nested(inner, binaryName);
+            if (clazz != null) {
+                return clazz;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Appends annotation values as alternating names and values, each preceded by a comma.
+     */
+    private static void values(StringBuilder b, Map<String,Object> values) {
+        for (Map.Entry<String,Object> entry : values.entrySet()) {
+            b.append(", ");
+            literal(b, entry.getKey());
+            b.append(", ");
+            literal(b, entry.getValue());
+        }
+    }
+
+    /**
+     * Appends a Java expression for a value as found in {@link SerAnnotatedElement#values}, or for a string or null.
+     */
+    private static void literal(StringBuilder b, Object v) {
+        if (v == null) {
+            b.append("null");
+        } else if (v instanceof String) {
+            b.append('"');
+            for (char c : ((String) v).toCharArray()) {
+                escape(b, c, '"');
+            }
+            b.append('"');
+        } else if (v instanceof Character) {
+            b.append('\'');
+            escape(b, (Character) v, '\'');
+            b.append('\'');
+        } else if (v instanceof Long) {
+            b.append(v).append('L');
+        } else if (v instanceof Short) {
+            b.append("(short) ").append(v);
+        } else if (v instanceof Byte) {
+            b.append("(byte) ").append(v);
+        } else if (v instanceof Float) {
+            float f = (Float) v;
+            b.append(Float.isNaN(f) ? "Float.NaN" : f == Float.POSITIVE_INFINITY ? "Float.POSITIVE_INFINITY" :
+                    f == Float.NEGATIVE_INFINITY ? "Float.NEGATIVE_INFINITY" : f + "F");
+        } else if (v instanceof Double) {
+            double d = (Double) v;
+            b.append(Double.isNaN(d) ? "Double.NaN" : d == Double.POSITIVE_INFINITY ? "Double.POSITIVE_INFINITY" :
+                    d == Double.NEGATIVE_INFINITY ? "Double.NEGATIVE_INFINITY" : d + "D");
+        } else if (v instanceof Integer || v instanceof Boolean) {
+            b.append(v);
+        } else if (v instanceof List<?>) {
+            b.append("list(");
+            boolean first = true;
+            for (Object o : (List<?>) v) {
+                if (!first) {
+                    b.append(", ");
+                }
+                first = false;
+                literal(b, o);
+            }
+            b.append(')');
+        } else if (v instanceof SerEnumConst) {
+            b.append("enumConst(");
+            literal(b, ((SerEnumConst) v).enumName);
+            b.append(", ");
+            literal(b, ((SerEnumConst) v).constName);
+            b.append(')');
+        } else if (v instanceof SerTypeConst) {
+            b.append("typeConst(");
+            literal(b, ((SerTypeConst) v).name);
+            b.append(')');
+        } else if (v instanceof SerAnnConst) {
+            b.append("annConst(");
+            literal(b, ((SerAnnConst) v).name);
+            values(b, ((SerAnnConst) v).values);
+            b.append(')');
+        } else {
+            throw new IllegalArgumentException("unexpected value " + v);
+        }
+    }
+
+    private static void escape(StringBuilder b, char c, char quote) {
+        if (c == quote || c == '\\') {
+            b.append('\\').append(c);
+        } else if (c < 0x20) {
+            // Octal, since a Unicode escape for a line break would be translated before the literal is even parsed.
+            b.append(String.format("\\%03o", (int) c));
+        } else if (c > 0x7e) {
+            b.append(String.format("\\u%04x", (int) c));
+        } else {
+            b.append(c);
+        }
+    }
+
+    /**
+     * Reads an index left in the output directory by an earlier compilation.
+     * @return its entries, or null if there is none
+     */
+    private List<SerAnnotatedElement> read(String annName) throws IOException {
+        try {
+            FileObject in = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", METAINF_ANNOTATIONS + annName);
+            try (InputStream is = in.openInputStream()) {
+                return IndexFile.read(is);
+            }
+        } catch (FileNotFoundException|NoSuchFileException x) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads an aggregate index left in the output directory by an earlier compilation.
+     * @return its entries by annotation name, or an empty map if there is none
+     */
+    private Map<String,List<SerAnnotatedElement>> readAggregate() {
+        try {
+            FileObject in = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", AGGREGATE_INDEX);
+            try (InputStream is = in.openInputStream()) {
+                return IndexFile.readAggregate(is);
+            }
+        } catch (FileNotFoundException|NoSuchFileException x) {
+            // OK, created for the first time
+        } catch (IOException x) {
+            processingEnv.getMessager().printMessage(Kind.ERROR, x.toString());
+        }
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Deletes an aggregate index left in the output directory by an earlier compilation, which would now be out of date.
+     * The Filer cannot delete files, so only possible when the output is an actual directory;
+     * otherwise the runtime notices that the aggregate no longer matches the per-annotation files.
+     */
+    private void deleteAggregate() {
+        try {
+            URI uri = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", AGGREGATE_INDEX).toUri();
+            if ("file".equals(uri.getScheme())) {
+                File f = new File(uri);
+                if (f.isFile() && !f.delete()) {
+                    processingEnv.getMessager().printMessage(Kind.WARNING, "could not delete outdated " + f);
+                }
+            }
+        } catch (IOException | IllegalArgumentException x) {
+            // OK, just cannot delete
+        }
+    }
+
+    /**
+     * Finds the names of annotations with an index in the output directory,
+     * so that those no longer used anywhere in the compilation are still checked for stale entries.
+     * Only possible when the output is an actual directory.
+     */
+    private Set<String> existingIndices() {
+        Set<String> annNames = new TreeSet<String>();
+        try {
+            URI uri = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", AGGREGATE_INDEX).toUri();
+            if ("file".equals(uri.getScheme())) {
+                String[] names = new File(new File(uri).getParentFile(), "annotations").list();
+                if (names != null) {
+                    for (String name : names) {
+                        if (!name.endsWith(".txt")) {
+                            annNames.add(name);
+                        }
+                    }
+                }
+            }
+        } catch (IOException | IllegalArgumentException x) {
+            // OK, just cannot list
+        }
+        return annNames;
+    }
+
+    /**
+     * Checks whether an earlier compilation left a class file for a class not compiled now.
+     * Checked only once per class, though {@link #merge} may run in several rounds.
+     */
+    private boolean classExists(String className) {
+        Boolean exists = classFiles.get(className);
+        if (exists == null) {
+            exists = probeClassFile(className);
+            classFiles.put(className, exists);
+        }
+        return exists;
+    }
+
+    private boolean probeClassFile(String className) {
+        int dot = className.lastIndexOf('.');
+        try {
+            FileObject clazz = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT,
+                    dot == -1 ? "" : className.substring(0, dot), className.substring(dot + 1) + ".class");
+            clazz.openInputStream().close();
+            return true;
+        } catch (FileNotFoundException|NoSuchFileException x) {
+            return false;
+        } catch (IOException x) {
+            // Cannot tell, so keep the entry as before.
+            return true;
+        }
     }
 
     private SerAnnotatedElement makeSerAnnotatedElement(Element elt, TypeElement ann) {
@@ -379,7 +972,37 @@ public class Indexer extends AbstractProcessor {
                 return "should not be permitted on element type " + type;
             }
         }
+        for (String attribute : indexable.getAnnotation(Indexable.class).indexedBy()) {
+            ExecutableElement method = null;
+            for (ExecutableElement m : ElementFilter.methodsIn(indexable.getEnclosedElements())) {
+                if (m.getSimpleName().contentEquals(attribute)) {
+                    method = m;
+                }
+            }
+            if (method == null) {
+                return "no attribute " + attribute + " to index by";
+            }
+            TypeMirror type = method.getReturnType();
+            if (type.getKind() == TypeKind.ARRAY) {
+                type = ((ArrayType) type).getComponentType();
+            }
+            if (!type.getKind().isPrimitive() && !isIndexableType(type)) {
+                return "cannot index by attribute " + attribute + " of type " + method.getReturnType();
+            }
+        }
         return null;
     }
 
+    private boolean isIndexableType(TypeMirror type) {
+        if (type.getKind() != TypeKind.DECLARED) {
+            return false;
+        }
+        Element elt = processingEnv.getTypeUtils().asElement(type);
+        if (elt.getKind() == ElementKind.ENUM) {
+            return true;
+        }
+        String name = processingEnv.getElementUtils().getBinaryName((TypeElement) elt).toString();
+        return name.equals("java.lang.String") || name.equals("java.lang.Class");
+    }
+
 }
@@ -1,11 +1,14 @@
 package net.java.sezpoz.impl;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInput;
-import java.io.ObjectInputStream;
 import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 
@@ -13,61 +16,117 @@ import java.util.jar.JarFile;
 public class Inspector {
 
     private static final byte[] ZIP_MAGIC = {0x50, 0x4b, 0x03, 0x04};
-    private static final byte[] SER_MAGIC = {(byte) 0xac, (byte) 0xed, 0x00, 0x05};
 
     public static void main(String[] args) throws Exception {
         if (args.length == 0) {
-            System.err.println("Usage: java -jar sezpoz.jar [ something.jar | some.serialized.Annotation ]+");
+            System.err.println("Usage: java -jar sezpoz.jar [ something.jar | classes/ | META-INF/annotations/some.Annotation ]+");
         }
         for (String arg : args) {
             System.out.println("--- " + arg);
+            File f = new File(arg);
             byte[] magic = new byte[4];
-            try (InputStream is = new FileInputStream(arg)) {
-                is.read(magic, 0, 4);
+            if (!f.isDirectory()) {
+                try (InputStream is = new FileInputStream(f)) {
+                    is.read(magic, 0, 4);
+                }
             }
-            if (Arrays.equals(magic, ZIP_MAGIC)) {
-                try (JarFile jf = new JarFile(arg, false)) {
-                    Enumeration<JarEntry> entries = jf.entries();
-                    while (entries.hasMoreElements()) {
-                        JarEntry entry = entries.nextElement();
-                        String name = entry.getName();
-                        if (name.startsWith(Indexer.METAINF_ANNOTATIONS)) {
-                            String annotation = name.substring(Indexer.METAINF_ANNOTATIONS.length());
-                            if (annotation.isEmpty() || annotation.endsWith(".txt")) {
-                                continue;
-                            }
-                            System.out.println("# " + annotation);
-                            try (InputStream is = jf.getInputStream(entry)) {
-                                is.read(magic, 0, 4);
-                            }
-                            if ((Arrays.equals(magic, SER_MAGIC))) {
-                                try (InputStream is = jf.getInputStream(entry)) {
-                                    dump(is);
-                                }
-                            } else {
-                                System.err.println("does not look like a Java serialized file");
-                            }
-                        }
+            if (f.isDirectory() || Arrays.equals(magic, ZIP_MAGIC)) {
+                scan(f, (annotation, entry, elements) -> {
+                    System.out.println("# " + annotation + (entry.equals(Indexer.AGGREGATE_INDEX) ? " (" + entry + ")" : ""));
+                    for (SerAnnotatedElement el : elements) {
+                        System.out.println(el);
+                    }
+                });
+            } else if (IndexFile.isIndex(magic)) {
+                try (InputStream is = new FileInputStream(f)) {
+                    for (SerAnnotatedElement el : IndexFile.read(is)) {
+                        System.out.println(el);
                     }
                 }
-            } else if (Arrays.equals(magic, SER_MAGIC)) {
-                try (InputStream is = new FileInputStream(arg)) {
-                    dump(is);
+            } else if (IndexFile.isAggregate(magic)) {
+                try (InputStream is = new FileInputStream(f)) {
+                    for (Map.Entry<String,List<SerAnnotatedElement>> entry : IndexFile.readAggregate(is).entrySet()) {
+                        System.out.println("# " + entry.getKey());
+                        for (SerAnnotatedElement el : entry.getValue()) {
+                            System.out.println(el);
+                        }
+                    }
                 }
             } else {
-                System.err.println("does not look like either a JAR file or a Java serialized file");
+                System.err.println("does not look like either a JAR file or a SezPoz index");
             }
         }
     }
-    
-    private static void dump(InputStream is) throws Exception {
-        ObjectInput oi = new ObjectInputStream(is);
-        while (true) {
-            SerAnnotatedElement el = (SerAnnotatedElement) oi.readObject();
-            if (el == null) {
-                break;
+
+    /** Receives indices found by {@link #scan}. */
+    interface Visitor {
+        /**
+         * @param annotation name of the annotation type
+         * @param entry path of the file within the JAR or directory
+         * @param elements elements in that index
+         */
+        void visit(String annotation, String entry, List<SerAnnotatedElement> elements) throws IOException;
+    }
+
+    /**
+     * Reads all per-annotation indices, and any aggregated index, in a JAR file or classes directory.
+     * Files which do not look like indices are reported and skipped.
+     */
+    static void scan(File jarOrDir, Visitor visitor) throws IOException {
+        if (jarOrDir.isDirectory()) {
+            File dir = new File(jarOrDir, Indexer.METAINF_ANNOTATIONS);
+            String[] kids = dir.list();
+            if (kids != null) {
+                Arrays.sort(kids);
+                for (String kid : kids) {
+                    if (kid.endsWith(".txt")) {
+                        continue;
+                    }
+                    try (InputStream is = new FileInputStream(new File(dir, kid))) {
+                        visit(kid, Indexer.METAINF_ANNOTATIONS + kid, is, visitor);
+                    }
+                }
+            }
+            File aggregate = new File(jarOrDir, Indexer.AGGREGATE_INDEX);
+            if (aggregate.isFile()) {
+                try (InputStream is = new FileInputStream(aggregate)) {
+                    visit(null, Indexer.AGGREGATE_INDEX, is, visitor);
+                }
+            }
+        } else {
+            try (JarFile jf = new JarFile(jarOrDir, false)) {
+                Enumeration<JarEntry> entries = jf.entries();
+                while (entries.hasMoreElements()) {
+                    JarEntry entry = entries.nextElement();
+                    String name = entry.getName();
+                    if (name.startsWith(Indexer.METAINF_ANNOTATIONS)) {
+                        String annotation = name.substring(Indexer.METAINF_ANNOTATIONS.length());
+                        if (annotation.isEmpty() || annotation.endsWith(".txt")) {
+                            continue;
+                        }
+                        try (InputStream is = jf.getInputStream(entry)) {
+                            visit(annotation, name, is, visitor);
+                        }
+                    } else if (name.equals(Indexer.AGGREGATE_INDEX)) {
+                        try (InputStream is = jf.getInputStream(entry)) {
+                            visit(null, name, is, visitor);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static void visit(String annotation, String entry, InputStream is, Visitor visitor) throws IOException {
+        byte[] data = is.readAllBytes();
+        if (annotation != null && IndexFile.isIndex(data)) {
+            visitor.visit(annotation, entry, IndexFile.read(new ByteArrayInputStream(data)));
+        } else if (annotation == null && IndexFile.isAggregate(data)) {
+            for (Map.Entry<String,List<SerAnnotatedElement>> section : IndexFile.readAggregate(new ByteArrayInputStream(data)).entrySet()) {
+                visitor.visit(section.getKey(), entry, section.getValue());
             }
-            System.out.println(el);
+        } else {
+            System.err.println(entry + " does not look like a SezPoz index");
         }
     }
 
@@ -0,0 +1,147 @@
+package net.java.sezpoz.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * CLI utility for combining the SezPoz metadata of several JARs or classes directories,
+ * as when building a shaded or fat JAR.
+ * Inputs are read one at a time, and the merged elements are kept in memory fully decoded,
+ * so that no input's index buffer stays reachable once it has been read.
+ * Where several inputs register the same {@link SerAnnotatedElement#key},
+ * the first one wins, mirroring the order in which {@link net.java.sezpoz.Index} would have found them.
+ * Attribute indices written for {@link net.java.sezpoz.Indexable#indexedBy} are rebuilt over the merged entries.
+ * An {@link Indexer#AGGREGATE_INDEX} in an input would not cover the other inputs,
+ * so it should be excluded from the merged output unless regenerated with {@code -aggregate}; a warning is printed otherwise.
+ * From Maven this may be run using {@code exec-maven-plugin} with {@code mainClass} set to this class.
+ */
+public class Merger {
+
+    public static void main(String[] args) throws Exception {
+        boolean aggregate = false;
+        boolean serialized = false;
+        int i = 0;
+        while (i < args.length && args[i].startsWith("-")) {
+            if (args[i].equals("-aggregate")) {
+                aggregate = true;
+            } else if (args[i].equals("-serialized")) {
+                serialized = true;
+            } else {
+                break;
+            }
+            i++;
+        }
+        if (args.length - i < 2) {
+            System.err.println("Usage: java -cp sezpoz.jar " + Merger.class.getName() + " [-aggregate] [-serialized] outputdir ( something.jar | classes/ )+");
+            System.exit(2);
+        }
+        File outputDir = new File(args[i++]);
+        List<File> inputs = new ArrayList<File>();
+        while (i < args.length) {
+            inputs.add(new File(args[i++]));
+        }
+        merge(inputs, outputDir, aggregate, serialized);
+    }
+
+    /**
+     * Merges metadata from several inputs.
+     * @param inputs JAR files or classes directories, in precedence order
+     * @param outputDir a directory in which to create {@link Indexer#METAINF_ANNOTATIONS} files
+     * @param aggregate whether to also write {@link Indexer#AGGREGATE_INDEX}
+     * @param serialized whether to use the older serialized format rather than the compact one
+     * @return the number of distinct elements written per annotation
+     */
+    public static Map<String,Integer> merge(List<File> inputs, File outputDir, boolean aggregate, boolean serialized) throws IOException {
+        Map<String,Map<String,SerAnnotatedElement>> merged = new TreeMap<String,Map<String,SerAnnotatedElement>>();
+        Map<String,Map<String,Object>> indexedAttributes = new TreeMap<String,Map<String,Object>>();
+        Set<File> withAggregate = new LinkedHashSet<File>();
+        for (File input : inputs) {
+            Inspector.scan(input, (annotation, entry, elements) -> {
+                if (entry.equals(Indexer.AGGREGATE_INDEX)) {
+                    // Always accompanied by per-annotation files with the same contents.
+                    withAggregate.add(input);
+                    return;
+                }
+                Map<String,SerAnnotatedElement> byKey = merged.get(annotation);
+                if (byKey == null) {
+                    byKey = new TreeMap<String,SerAnnotatedElement>();
+                    merged.put(annotation, byKey);
+                }
+                for (SerAnnotatedElement el : elements) {
+                    if (!byKey.containsKey(el.key())) {
+                        // Decoding drops the element's reference to the buffer it was read from.
+                        el.values();
+                        byKey.put(el.key(), el);
+                    }
+                }
+                Map<String,Object> attributes = indexedAttributes.get(annotation);
+                if (attributes == null) {
+                    attributes = new TreeMap<String,Object>();
+                    indexedAttributes.put(annotation, attributes);
+                }
+                for (Map.Entry<String,Object> attribute : IndexFile.indexedAttributes(elements).entrySet()) {
+                    attributes.putIfAbsent(attribute.getKey(), attribute.getValue());
+                }
+            });
+        }
+        File dir = new File(outputDir, Indexer.METAINF_ANNOTATIONS);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("could not create " + dir);
+        }
+        Map<String,Integer> counts = new TreeMap<String,Integer>();
+        for (Map.Entry<String,Map<String,SerAnnotatedElement>> entry : merged.entrySet()) {
+            String annName = entry.getKey();
+            Map<String,SerAnnotatedElement> elements = entry.getValue();
+            try (OutputStream os = new BufferedOutputStream(new FileOutputStream(new File(dir, annName)))) {
+                if (serialized) {
+                    IndexFile.writeSerialized(os, elements.values());
+                } else {
+                    IndexFile.write(os, elements.values(), indexedAttributes.get(annName));
+                }
+            }
+            try (Writer w = new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(new File(dir, annName + ".txt"))), StandardCharsets.UTF_8)) {
+                w.write("# informational; use java -jar sezpoz.jar to see authoritative contents\n");
+                for (SerAnnotatedElement el : elements.values()) {
+                    w.write(el.toString());
+                    w.write('\n');
+                }
+            }
+            counts.put(annName, elements.size());
+        }
+        if (!aggregate) {
+            File stale = new File(outputDir, Indexer.AGGREGATE_INDEX);
+            if (stale.isFile() && !stale.delete()) {
+                throw new IOException("could not delete " + stale);
+            }
+            for (File input : withAggregate) {
+                // Ignored at runtime since it no longer matches the merged files, but only after checking.
+                System.err.println("warning: " + input + " contains " + Indexer.AGGREGATE_INDEX + "; exclude it from the merged output, or pass -aggregate to regenerate it");
+            }
+        }
+        if (aggregate && !merged.isEmpty()) {
+            try (OutputStream os = new BufferedOutputStream(new FileOutputStream(new File(outputDir, Indexer.AGGREGATE_INDEX)))) {
+                Map<String,List<SerAnnotatedElement>> all = new TreeMap<String,List<SerAnnotatedElement>>();
+                for (Map.Entry<String,Map<String,SerAnnotatedElement>> entry : merged.entrySet()) {
+                    all.put(entry.getKey(), new ArrayList<SerAnnotatedElement>(entry.getValue().values()));
+                }
+                IndexFile.writeAggregate(os, all, indexedAttributes);
+            }
+        }
+        return counts;
+    }
+
+    private Merger() {}
+
+}
@@ -0,0 +1,82 @@
+package net.java.sezpoz.impl;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Superclass of the registry which {@link Indexer} generates for each indexable annotation
+ * when passed {@code -Asezpoz.registry=true}.
+ * The registry of {@code x.Menu} is named {@code x.Menu$$Index};
+ * it lists the same entries as the index file, as constants,
+ * and creates instances by calling constructors, methods, or fields directly.
+ * Not intended to be subclassed by hand.
+ */
+public abstract class Registry {
+
+    /** appended to the binary name of an annotation to get the name of its registry */
+    public static final String SUFFIX = "$$Index";
+
+    private final List<SerAnnotatedElement> elements = new ArrayList<SerAnnotatedElement>();
+
+    protected Registry() {}
+
+    /**
+     * @return the registered elements, in the same order as the index file
+     */
+    public final List<SerAnnotatedElement> elements() {
+        return Collections.unmodifiableList(elements);
+    }
+
+    /**
+     * @return the class file this registry was loaded from, or null if unknown
+     */
+    public final URL location() {
+        String name = getClass().getName();
+        return getClass().getResource(name.substring(name.lastIndexOf('.') + 1) + ".class");
+    }
+
+    /**
+     * Creates the instance of one element.
+     * @param index a position in {@link #elements}
+     * @return a new object, or the value of a method or field
+     * @throws Exception if the constructor or method throws one
+     */
+    public abstract Object create(int index) throws Exception;
+
+    /**
+     * Registers an element.
+     * @param values alternating attribute names and values, as in {@link SerAnnotatedElement#values}
+     */
+    protected final void add(String className, String memberName, boolean isMethod, Object... values) {
+        elements.add(new SerAnnotatedElement(className, memberName, isMethod, map(values)));
+    }
+
+    protected static ArrayList<Object> list(Object... values) {
+        return new ArrayList<Object>(Arrays.asList(values));
+    }
+
+    protected static SerEnumConst enumConst(String enumName, String constName) {
+        return new SerEnumConst(enumName, constName);
+    }
+
+    protected static SerTypeConst typeConst(String name) {
+        return new SerTypeConst(name);
+    }
+
+    protected static SerAnnConst annConst(String name, Object... values) {
+        return new SerAnnConst(name, map(values));
+    }
+
+    private static TreeMap<String,Object> map(Object[] values) {
+        TreeMap<String,Object> map = new TreeMap<String,Object>();
+        for (int i = 0; i < values.length; i += 2) {
+            map.put((String) values[i], values[i + 1]);
+        }
+        return map;
+    }
+
+}
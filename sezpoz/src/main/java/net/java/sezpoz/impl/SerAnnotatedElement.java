@@ -32,13 +32,14 @@
 
 package net.java.sezpoz.impl;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.TreeMap;
 
 /**
  * Represents one annotated element (class etc.) with a particular list of values.
- * One META-INF/annotations/* file is a sequence of serialized SerAnnotatedElement
- * instances, terminated by a null.
+ * One META-INF/annotations/* file is a sequence of these, as read and written by {@link IndexFile}.
  */
 public final class SerAnnotatedElement implements Serializable, Comparable<SerAnnotatedElement> {
 
@@ -50,8 +51,13 @@ public final class SerAnnotatedElement implements Serializable, Comparable<SerAn
     public final String memberName;
     /** true for method, false for class or field */
     public final boolean isMethod;
-    /** values of annotation, as primitive wrappers, String's, ArrayList's (for arrays), or Ser*Const objects */
-    public final TreeMap<String,Object> values;
+    /** values of annotation, as primitive wrappers, String's, ArrayList's (for arrays), or Ser*Const objects; null until {@link #values()} decodes them */
+    private volatile TreeMap<String,Object> values;
+    /** source of {@link #values} if not yet decoded */
+    private transient IndexFile.Decoder decoder;
+    private transient int valuesOffset;
+    /** cached result of {@link #key} */
+    private transient String key;
 
     SerAnnotatedElement(String className, String memberName, boolean isMethod, TreeMap<String,Object> values) {
         this.className = className;
@@ -60,6 +66,45 @@ public final class SerAnnotatedElement implements Serializable, Comparable<SerAn
         this.values = values;
     }
 
+    SerAnnotatedElement(String className, String memberName, boolean isMethod, IndexFile.Decoder decoder, int valuesOffset) {
+        this.className = className;
+        this.memberName = memberName;
+        this.isMethod = isMethod;
+        this.decoder = decoder;
+        this.valuesOffset = valuesOffset;
+    }
+
+    /**
+     * Values of the annotation.
+     * When read from a compact index these are decoded only on first call,
+     * so that callers interested only in the annotated element do not pay for them.
+     * @return values as primitive wrappers, String's, ArrayList's (for arrays), or Ser*Const objects
+     * @throws IllegalStateException if the index turns out to be corrupt
+     */
+    public TreeMap<String,Object> values() {
+        TreeMap<String,Object> v = values;
+        if (v == null) {
+            synchronized (this) {
+                v = values;
+                if (v == null) {
+                    try {
+                        v = decoder.values(valuesOffset);
+                    } catch (IOException x) {
+                        throw new IllegalStateException("corrupt index entry for " + key(), x);
+                    }
+                    values = v;
+                    decoder = null;
+                }
+            }
+        }
+        return v;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        values();
+        out.defaultWriteObject();
+    }
+
     public int hashCode() {
         return className.hashCode();
     }
@@ -72,26 +117,31 @@ public final class SerAnnotatedElement implements Serializable, Comparable<SerAn
         return className.equals(o.className) &&
                 ((memberName == null) ? (o.memberName == null) : memberName.equals(o.memberName)) &&
                 isMethod == o.isMethod &&
-                values.equals(o.values);
+                values().equals(o.values());
     }
 
     public String toString() {
-        return values.isEmpty() ? key() : key() + values;
+        TreeMap<String,Object> v = values();
+        return v.isEmpty() ? key() : key() + v;
     }
 
     /**
      * Key based on the annotated element, ignoring annotation values.
+     * Computed once per element, so cheap to call repeatedly.
      */
     public String key() {
-        StringBuffer b = new StringBuffer(className);
-        if (memberName != null) {
-            b.append('#');
-            b.append(memberName);
-            if (isMethod) {
-                b.append("()");
+        String k = key;
+        if (k == null) {
+            if (memberName == null) {
+                k = className;
+            } else if (isMethod) {
+                k = className + '#' + memberName + "()";
+            } else {
+                k = className + '#' + memberName;
             }
+            key = k;
         }
-        return b.toString();
+        return k;
     }
 
     @Override public int compareTo(SerAnnotatedElement o) {
@@ -33,26 +33,59 @@
 package net.java.sezpoz;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.annotation.Annotation;
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 import java.lang.reflect.Method;
+import java.lang.reflect.UndeclaredThrowableException;
 import java.net.URI;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.net.URLConnection;
 import java.net.URLStreamHandler;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.Spliterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
 import javax.swing.Action;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import net.java.sezpoz.impl.IndexFile;
+import net.java.sezpoz.impl.Indexer;
+import net.java.sezpoz.impl.Merger;
+import net.java.sezpoz.impl.SerAnnotatedElement;
 import net.java.sezpoz.impl.TestUtils;
 import static org.junit.Assert.*;
 import org.junit.Before;
@@ -263,6 +296,177 @@ public class IndexTest {
         } catch (NoSuchElementException x) {/*OK*/}
     }
 
+    @Test public void stream() throws Exception {
+        TestUtils.makeSource(src, "x.A",
+                "import java.lang.annotation.*;",
+                "@Target({ElementType.TYPE, ElementType.METHOD, ElementType.FIELD})",
+                "@net.java.sezpoz.Indexable",
+                "public @interface A {",
+                "int x();",
+                "}");
+        TestUtils.makeSource(src, "y.C1",
+                "@x.A(x=1)",
+                "public class C1 {}");
+        TestUtils.makeSource(src, "y.C2",
+                "@x.A(x=2)",
+                "public class C2 {}");
+        TestUtils.runApt(src, null, clz, new File[0], null);
+        File src2 = new File(dir, "src2");
+        TestUtils.makeSource(src2, "y.C1",
+                "@x.A(x=3)",
+                "public class C1 {}");
+        TestUtils.makeSource(src2, "y.C3",
+                "@x.A(x=4)",
+                "public class C3 {}");
+        File clz2 = new File(dir, "clz2");
+        TestUtils.runApt(src2, null, clz2, new File[] {clz}, null);
+        loader = new URLClassLoader(new URL[] {clz.toURI().toURL(), clz2.toURI().toURL()});
+        Class<? extends Annotation> a = loader.loadClass("x.A").asSubclass(Annotation.class);
+        Method x = a.getMethod("x");
+        Index<? extends Annotation,Object> index = Index.load(a, Object.class, loader);
+        Spliterator<? extends IndexItem<?,Object>> spliterator = index.spliterator();
+        assertTrue(spliterator.hasCharacteristics(Spliterator.DISTINCT | Spliterator.NONNULL | Spliterator.ORDERED));
+        assertFalse("size unknown until read", spliterator.hasCharacteristics(Spliterator.SIZED));
+        Spliterator<? extends IndexItem<?,Object>> prefix = spliterator.trySplit();
+        assertTrue("first resource", prefix.hasCharacteristics(Spliterator.SIZED | Spliterator.SUBSIZED));
+        assertEquals(2, prefix.estimateSize());
+        assertNull("last resource has only one item", spliterator.trySplit());
+        assertTrue(spliterator.hasCharacteristics(Spliterator.SIZED));
+        assertEquals("duplicate y.C1 skipped", 1, spliterator.estimateSize());
+        assertEquals(2, prefix.estimateSize());
+        Spliterator<? extends IndexItem<?,Object>> half = prefix.trySplit();
+        assertEquals(1, half.estimateSize());
+        assertEquals(1, prefix.estimateSize());
+        List<String> names = new ArrayList<String>();
+        half.forEachRemaining(item -> names.add(item.className()));
+        prefix.forEachRemaining(item -> names.add(item.className()));
+        spliterator.forEachRemaining(item -> names.add(item.className()));
+        assertEquals("[y.C1, y.C2, y.C3]", names.toString());
+        ClassLoader loader1 = new URLClassLoader(new URL[] {clz.toURI().toURL()});
+        spliterator = Index.load(loader1.loadClass("x.A").asSubclass(Annotation.class), Object.class, loader1).spliterator();
+        assertTrue("single resource", spliterator.hasCharacteristics(Spliterator.SIZED | Spliterator.SUBSIZED));
+        assertEquals(2, spliterator.estimateSize());
+        List<URL> loaded = new ArrayList<URL>();
+        IndexListener listener = new IndexListener() {
+            @Override public void resourceLoaded(String annotation, URL resource, int entries, long nanos) {
+                loaded.add(resource);
+            }
+        };
+        Index.addListener(listener);
+        try {
+            assertEquals("y.C1", index.stream().findFirst().get().className());
+            assertEquals("only first resource read", 1, loaded.size());
+        } finally {
+            Index.removeListener(listener);
+        }
+        assertEquals("[y.C1, y.C2, y.C3]", index.stream().map(IndexItem::className).collect(Collectors.toList()).toString());
+        for (int i = 0; i < 10; i++) {
+            assertEquals("[y.C1=1, y.C2=2, y.C3=4]", index.stream().parallel().map(item -> {
+                try {
+                    return item.className() + "=" + x.invoke(item.annotation());
+                } catch (ReflectiveOperationException e) {
+                    throw new AssertionError(e);
+                }
+            }).collect(Collectors.toList()).toString());
+        }
+        assertEquals(1, index.stream().filter(item -> item.className().equals("y.C3")).count());
+    }
+
+    @Test public void listener() throws Exception {
+        TestUtils.makeSource(src, "x.A",
+                "import java.lang.annotation.*;",
+                "@Target({ElementType.TYPE, ElementType.METHOD, ElementType.FIELD})",
+                "@net.java.sezpoz.Indexable",
+                "public @interface A {}");
+        TestUtils.makeSource(src, "y.C1",
+                "@x.A",
+                "public class C1 {}");
+        TestUtils.runApt(src, null, clz, new File[0], null);
+        File src2 = new File(dir, "src2");
+        TestUtils.makeSource(src2, "y.C1",
+                "@x.A",
+                "public class C1 {}");
+        File clz2 = new File(dir, "clz2");
+        TestUtils.runApt(src2, null, clz2, new File[] {clz}, null);
+        loader = new URLClassLoader(new URL[] {clz.toURI().toURL(), clz2.toURI().toURL()});
+        Class<? extends Annotation> a = loader.loadClass("x.A").asSubclass(Annotation.class);
+        List<String> events = new ArrayList<String>();
+        IndexListener listener = new IndexListener() {
+            @Override public void resourcesFound(String annotation, ClassLoader loader, int resources, long nanos) {
+                events.add("found " + annotation + " " + resources);
+            }
+            @Override public void resourceRead(String annotation, URL resource, long bytes, long nanos) {
+                assertTrue(bytes > 0);
+                events.add("read " + annotation);
+            }
+            @Override public void resourceLoaded(String annotation, URL resource, int entries, long nanos) {
+                events.add("loaded " + annotation + " " + entries);
+            }
+            @Override public void duplicateSkipped(String annotation, URL resource, String element) {
+                events.add("duplicate " + element);
+            }
+            @Override public void elementLoaded(IndexItem<?,?> item, long nanos) {
+                events.add("element " + item.className());
+            }
+            @Override public void instanceCreated(IndexItem<?,?> item, long nanos) {
+                events.add("instance " + item.className());
+            }
+        };
+        Index.clearCache();
+        Index.addListener(listener);
+        try {
+            for (IndexItem<?,Object> item : Index.load(a, Object.class, loader)) {
+                item.instance();
+                item.instance();
+            }
+            assertEquals("[found x.A 2, read x.A, loaded x.A 1, element y.C1, instance y.C1, read x.A, loaded x.A 1, duplicate y.C1]", events.toString());
+            events.clear();
+            Index.load(a, Object.class, loader).iterator().next();
+            assertEquals("cached", "[found x.A 2, loaded x.A 1]", events.toString());
+        } finally {
+            Index.removeListener(listener);
+        }
+        events.clear();
+        Index.load(a, Object.class, loader).iterator().next();
+        assertEquals("[]", events.toString());
+    }
+
+    @Test public void jfr() throws Exception {
+        TestUtils.makeSource(src, "x.A",
+                "import java.lang.annotation.*;",
+                "@Target({ElementType.TYPE, ElementType.METHOD, ElementType.FIELD})",
+                "@net.java.sezpoz.Indexable",
+                "public @interface A {}");
+        TestUtils.makeSource(src, "y.C",
+                "@x.A",
+                "public class C {}");
+        TestUtils.runApt(src, null, clz, new File[0], null);
+        Class<? extends Annotation> a = loader.loadClass("x.A").asSubclass(Annotation.class);
+        Index.clearCache();
+        File dump = new File(dir, "recording.jfr");
+        try (Recording recording = new Recording()) {
+            recording.start();
+            for (IndexItem<?,Object> item : Index.load(a, Object.class, loader)) {
+                item.instance();
+            }
+            recording.stop();
+            recording.dump(dump.toPath());
+        }
+        Set<String> events = new TreeSet<String>();
+        for (RecordedEvent event : RecordingFile.readAllEvents(dump.toPath())) {
+            String name = event.getEventType().getName();
+            if (name.startsWith("net.java.sezpoz.")) {
+                assertEquals("x.A", event.getString("annotation"));
+                assertFalse("duration is the event's own", event.hasField("time"));
+                if (name.endsWith("IndexResourceRead")) {
+                    assertTrue("began before reading", event.getDuration().toNanos() > 0);
+                }
+                events.add(name.substring("net.java.sezpoz.".length()));
+            }
+        }
+        assertEquals("[IndexElementLoad, IndexItemInstantiate, IndexResourceLoad, IndexResourceRead, IndexScan]", events.toString());
+    }
+
     @Test public void heavyOverlap() throws Exception {
         TestUtils.makeSource(src, "x.A",
                 "import java.lang.annotation.*;",
@@ -298,6 +502,278 @@ public class IndexTest {
         } catch (NoSuchElementException x) {/*OK*/}
     }
 
+    @Test public void parallelLoading() throws Exception {
+        TestUtils.makeSource(src, "x.A",
+                "import java.lang.annotation.*;",
+                "@Retention(RetentionPolicy.RUNTIME)",
+                "@Target({ElementType.TYPE, ElementType.METHOD, ElementType.FIELD})",
+                "@net.java.sezpoz.Indexable",
+                "public @interface A {",
+                "int x();",
+                "}");
+        TestUtils.makeSource(src, "y.C1",
+                "@x.A(x=1)",
+                "public class C1 {}");
+        TestUtils.runApt(src, null, clz, new File[0], null);
+        URL[] urls = new URL[6];
+        urls[0] = clz.toURI().toURL();
+        for (int i = 1; i < urls.length; i++) {
+            File srcN = new File(dir, "src" + i);
+            TestUtils.makeSource(srcN, "y.C1",
+                    "@x.A(x=" + (i + 1) + ")",
+                    "public class C1 {}");
+            TestUtils.makeSource(srcN, "z.D" + i,
+                    "@x.A(x=" + (i + 1) + ")",
+                    "public class D" + i + " {}");
+            File clzN = new File(dir, "clz" + i);
+            TestUtils.runApt(srcN, null, clzN, new File[] {clz}, null);
+            urls[i] = clzN.toURI().toURL();
+        }
+        loader = new URLClassLoader(urls);
+        Class<? extends Annotation> a = loader.loadClass("x.A").asSubclass(Annotation.class);
+        Method x = a.getMethod("x");
+        List<String> sequential = new ArrayList<String>();
+        for (IndexItem<?,Object> item : Index.load(a, Object.class, loader)) {
+            sequential.add(item.className() + "=" + x.invoke(item.annotation()));
+        }
+        assertEquals("[y.C1=1, z.D1=2, z.D2=3, z.D3=4, z.D4=5, z.D5=6]", sequential.toString());
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            List<String> parallel = new ArrayList<String>();
+            for (IndexItem<?,Object> item : Index.loadParallel(a, Object.class, loader, executor)) {
+                parallel.add(item.className() + "=" + x.invoke(item.annotation()));
+            }
+            assertEquals(sequential, parallel);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test public void instantiateAll() throws Exception {
+        TestUtils.makeSource(src, "x.A",
+                "import java.lang.annotation.*;",
+                "@Target({ElementType.TYPE, ElementType.METHOD, ElementType.FIELD})",
+                "@net.java.sezpoz.Indexable(type=Runnable.class)",
+                "public @interface A {}");
+        TestUtils.makeSource(src, "y.Good",
+                "@x.A",
+                "public class Good implements Runnable {",
+                "public void run() {}",
+                "@x.A public static Runnable make() {return new Good();}",
+                "}");
+        TestUtils.makeSource(src, "y.Bad",
+                "@x.A",
+                "public class Bad implements Runnable {",
+                "public Bad() {throw new IllegalStateException(\"broken\");}",
+                "public void run() {}",
+                "}");
+        TestUtils.runApt(src, null, clz, new File[0], null);
+        Class<? extends Annotation> a = loader.loadClass("x.A").asSubclass(Annotation.class);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            List<String> names = new ArrayList<String>();
+            for (Map.Entry<? extends IndexItem<?,Runnable>,CompletableFuture<Runnable>> entry : Index.load(a, Runnable.class, loader).instantiateAll(executor).entrySet()) {
+                IndexItem<?,Runnable> item = entry.getKey();
+                names.add(item.className() + (item.memberName() != null ? "#" + item.memberName() : ""));
+                if (item.className().equals("y.Bad")) {
+                    try {
+                        entry.getValue().get();
+                        fail();
+                    } catch (ExecutionException x) {
+                        assertTrue(x.getCause() instanceof InstantiationException);
+                    }
+                } else {
+                    Runnable r = entry.getValue().get();
+                    assertEquals("y.Good", r.getClass().getName());
+                    assertSame("cached by the item", r, item.instance());
+                }
+            }
+            assertEquals("[y.Bad, y.Good, y.Good#make]", names.toString());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test public void concurrentInstance() throws Exception {
+        TestUtils.makeSource(src, "x.A",
+                "import java.lang.annotation.*;",
+                "@Target({ElementType.TYPE, ElementType.METHOD, ElementType.FIELD})",
+                "@net.java.sezpoz.Indexable",
+                "public @interface A {}");
+        TestUtils.makeSource(src, "y.C",
+                "@x.A",
+                "public class C {",
+                "public static final java.util.concurrent.atomic.AtomicInteger count = new java.util.concurrent.atomic.AtomicInteger();",
+                "public C() throws InterruptedException {count.incrementAndGet(); Thread.sleep(1);}",
+                "@x.A public static Object none() {count.incrementAndGet(); return null;}",
+                "}");
+        TestUtils.runApt(src, null, clz, new File[0], null);
+        Class<? extends Annotation> a = loader.loadClass("x.A").asSubclass(Annotation.class);
+        AtomicInteger count = (AtomicInteger) loader.loadClass("y.C").getField("count").get(null);
+        int threads = 16;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (int round = 0; round < 50; round++) {
+                List<IndexItem<?,Object>> items = new ArrayList<IndexItem<?,Object>>();
+                for (IndexItem<?,Object> item : Index.load(a, Object.class, loader)) {
+                    items.add(item);
+                }
+                assertEquals(2, items.size());
+                count.set(0);
+                CyclicBarrier start = new CyclicBarrier(threads);
+                List<Future<List<Object>>> results = new ArrayList<Future<List<Object>>>();
+                for (int t = 0; t < threads; t++) {
+                    results.add(executor.submit(() -> {
+                        start.await();
+                        List<Object> seen = new ArrayList<Object>();
+                        for (IndexItem<?,Object> item : items) {
+                            seen.add(item.annotation());
+                            seen.add(item.element());
+                            seen.add(item.instance());
+                        }
+                        return seen;
+                    }));
+                }
+                List<Object> first = results.get(0).get();
+                assertNull("null result cached", first.get(5));
+                for (Future<List<Object>> result : results) {
+                    List<Object> seen = result.get();
+                    for (int i = 0; i < seen.size(); i++) {
+                        assertSame(seen.get(i), first.get(i));
+                    }
+                }
+                assertEquals("constructor and method each called once", 2, count.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test public void factory() throws Exception {
+        TestUtils.makeSource(src, "x.A",
+                "import java.lang.annotation.*;",
+                "@Target({ElementType.TYPE, ElementType.METHOD, ElementType.FIELD})",
+                "@net.java.sezpoz.Indexable(type=Runnable.class)",
+                "public @interface A {}");
+        TestUtils.makeSource(src, "y.C",
+                "@x.A",
+                "public class C implements Runnable {",
+                "public void run() {}",
+                "@x.A public static Runnable make() {return new C();}",
+                "@x.A public static final Runnable FIELD = new C();",
+                "@x.A public static Runnable fail() throws java.io.IOException {throw new java.io.IOException(\"oops\");}",
+                "}");
+        TestUtils.runApt(src, null, clz, new File[0], null);
+        Class<? extends Annotation> a = loader.loadClass("x.A").asSubclass(Annotation.class);
+        int cnt = 0;
+        for (IndexItem<?,Runnable> item : Index.load(a, Runnable.class, loader)) {
+            cnt++;
+            Supplier<Runnable> factory = item.factory();
+            assertSame("cached", factory, item.factory());
+            if ("fail".equals(item.memberName())) {
+                try {
+                    factory.get();
+                    fail();
+                } catch (UndeclaredThrowableException x) {
+                    assertEquals("oops", x.getCause().getMessage());
+                }
+                try {
+                    item.instance();
+                    fail();
+                } catch (InstantiationException x) {
+                    assertEquals("oops", x.getCause().getMessage());
+                }
+            } else if ("FIELD".equals(item.memberName())) {
+                assertSame(item.instance(), factory.get());
+            } else {
+                Runnable r = factory.get();
+                assertEquals("y.C", r.getClass().getName());
+                assertNotSame("fresh instance", r, factory.get());
+                assertNotSame(item.instance(), r);
+            }
+        }
+        assertEquals(4, cnt);
+    }
+
+    @Test public void registry() throws Exception {
+        TestUtils.makeSource(src, "x.A",
+                "import java.lang.annotation.*;",
+                "@Retention(RetentionPolicy.RUNTIME)",
+                "@Target({ElementType.TYPE, ElementType.METHOD, ElementType.FIELD})",
+                "@net.java.sezpoz.Indexable(type=Runnable.class)",
+                "public @interface A {",
+                "String s() default \"\";",
+                "char c() default 'c';",
+                "long l() default 0;",
+                "byte b() default 0;",
+                "float f() default 0;",
+                "double d() default 0;",
+                "Class<?> t() default Object.class;",
+                "java.lang.annotation.ElementType e() default ElementType.TYPE;",
+                "Retention r() default @Retention(RetentionPolicy.CLASS);",
+                "int[] is() default {};",
+                "}");
+        TestUtils.makeSource(src, "y.C",
+                "@x.A(s=\"quote\\\" backslash\\\\ line\\n\\u0001\\u00e9\", c='\\'', l=Long.MIN_VALUE, b=-1, f=Float.NaN, d=Double.NEGATIVE_INFINITY,",
+                "t=Thread.State.class, e=java.lang.annotation.ElementType.FIELD, r=@java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.SOURCE), is={1, 2})",
+                "public class C implements Runnable {",
+                "public void run() {}",
+                "@x.A public static Runnable make() {return new C();}",
+                "@x.A public static final Runnable FIELD = new C();",
+                "public static class N implements Runnable {@x.A public static final N INSTANCE = new N(); public void run() {}}",
+                "}");
+        TestUtils.runApt(src, null, clz, new File[0], null, "sezpoz.registry=true");
+        assertTrue(new File(clz, "x/A$$Index.class").isFile());
+        Class<? extends Annotation> a = loader.loadClass("x.A").asSubclass(Annotation.class);
+        List<Annotation> fromIndex = new ArrayList<Annotation>();
+        for (IndexItem<?,Runnable> item : Index.load(a, Runnable.class, new URLClassLoader(new URL[0], loader))) {
+            fromIndex.add(item.annotation());
+        }
+        List<URL> loaded = new ArrayList<URL>();
+        IndexListener listener = new IndexListener() {
+            @Override public void resourceLoaded(String annotation, URL resource, int entries, long nanos) {
+                loaded.add(resource);
+            }
+        };
+        Index.addListener(listener);
+        int cnt = 0;
+        for (IndexItem<?,Runnable> item : Index.load(a, Runnable.class, loader)) {
+            assertEquals(fromIndex.get(cnt), item.annotation());
+            assertEquals(item.className(), item.instance().getClass().getName());
+            if (item.memberName() == null) {
+                assertEquals(loader.loadClass("y.C").getAnnotation(a), item.annotation());
+                assertNotSame("fresh instance", item.factory().get(), item.factory().get());
+            } else if (item.memberName().equals("FIELD")) {
+                assertSame(loader.loadClass("y.C").getField("FIELD").get(null), item.instance());
+            }
+            cnt++;
+        }
+        Index.removeListener(listener);
+        assertEquals(4, cnt);
+        assertEquals("registry used instead", "[]", loaded.toString());
+        assertEquals("[y.C]", classNames(Index.load(a, Object.class, loader).where("l", Long.MIN_VALUE)));
+        assertEquals("[y.C$N]", classNames(Index.load(a, Object.class, loader).lookup("y.C$N")));
+        Spliterator<? extends IndexItem<?,Runnable>> spliterator = Index.load(a, Runnable.class, loader).spliterator();
+        assertTrue(spliterator.hasCharacteristics(Spliterator.SIZED | Spliterator.SUBSIZED));
+        assertEquals(4, spliterator.estimateSize());
+        assertEquals("[y.C$N]", Index.load(a, Runnable.class, loader).lookup("y.C$N").stream().parallel().map(item -> {
+            try {
+                return item.instance().getClass().getName();
+            } catch (InstantiationException e) {
+                throw new AssertionError(e);
+            }
+        }).collect(Collectors.toList()).toString());
+        File src2 = new File(dir, "src2");
+        TestUtils.makeSource(src2, "z.D",
+                "@x.A",
+                "public class D implements Runnable {public void run() {}}");
+        File clz2 = new File(dir, "clz2");
+        TestUtils.runApt(src2, null, clz2, new File[] {clz}, null);
+        loader = new URLClassLoader(new URL[] {clz.toURI().toURL(), clz2.toURI().toURL()});
+        a = loader.loadClass("x.A").asSubclass(Annotation.class);
+        assertEquals("registry ignored when indexed elsewhere too", "[y.C, y.C, y.C, y.C$N, z.D]", classNames(Index.load(a, Object.class, loader)));
+    }
+
     @Test public void defaultValues() throws Exception {
         TestUtils.makeSource(src, "x.A",
                 "import java.lang.annotation.*;",
@@ -437,6 +913,408 @@ public class IndexTest {
         assertEquals(live, ann);
         assertEquals(ann, live);
         assertEquals(live.hashCode(), ann.hashCode());
+        // Proxies from separate loads compare by value, as map keys would:
+        Annotation other = Index.load(a, Object.class, loader).iterator().next().annotation();
+        assertNotSame(ann, other);
+        assertEquals(ann, other);
+        assertEquals(new HashSet<Annotation>(Arrays.asList(live)), new HashSet<Annotation>(Arrays.asList(ann, other)));
+        assertFalse(ann.equals(bb));
+    }
+
+    @Test public void serializedFormat() throws Exception {
+        TestUtils.makeSource(src, "x.A",
+                "import java.lang.annotation.*;",
+                "@Retention(RetentionPolicy.RUNTIME)",
+                "@Target({ElementType.TYPE, ElementType.METHOD, ElementType.FIELD})",
+                "@net.java.sezpoz.Indexable",
+                "public @interface A {",
+                "String s();",
+                "E[] es();",
+                "Class<?> c();",
+                "}");
+        TestUtils.makeSource(src, "x.E",
+                "public enum E {ONE, TWO}");
+        TestUtils.makeSource(src, "y.C",
+                "import x.*;",
+                "@A(s=\"hello\", es={E.TWO, E.ONE}, c=String.class)",
+                "public class C {}");
+        TestUtils.runApt(src, null, clz, new File[0], null);
+        // Rewrite the index as older versions of SezPoz would have.
+        File index = new File(clz, "META-INF/annotations/x.A");
+        List<SerAnnotatedElement> elements;
+        try (InputStream is = new FileInputStream(index)) {
+            elements = IndexFile.read(is);
+        }
+        try (OutputStream os = new FileOutputStream(index)) {
+            IndexFile.writeSerialized(os, elements);
+        }
+        Class<? extends Annotation> a = loader.loadClass("x.A").asSubclass(Annotation.class);
+        Iterator<? extends IndexItem<?,Object>> it = Index.load(a, Object.class, loader).iterator();
+        assertTrue(it.hasNext());
+        IndexItem<?,Object> item = it.next();
+        assertFalse(it.hasNext());
+        assertEquals("y.C", item.className());
+        Annotation live = item.element().getAnnotation(a);
+        assertEquals(live, item.annotation());
+        assertEquals(item.annotation(), live);
+        assertSame("proxy cached", item.annotation(), item.annotation());
+        Object[] es = (Object[]) a.getMethod("es").invoke(item.annotation());
+        assertEquals("[TWO, ONE]", Arrays.toString(es));
+        es[0] = null;
+        assertEquals("arrays copied on each call", "[TWO, ONE]", Arrays.toString((Object[]) a.getMethod("es").invoke(item.annotation())));
+    }
+
+    @Test public void cache() throws Exception {
+        TestUtils.makeSource(src, "x.A",
+                "import java.lang.annotation.*;",
+                "@Target({ElementType.TYPE, ElementType.METHOD, ElementType.FIELD})",
+                "@net.java.sezpoz.Indexable",
+                "public @interface A {}");
+        TestUtils.makeSource(src, "y.C1",
+                "@x.A",
+                "public class C1 {}");
+        TestUtils.runApt(src, null, clz, new File[0], null);
+        File index = new File(clz, "META-INF/annotations/x.A");
+        URL resource = index.toURI().toURL();
+        List<SerAnnotatedElement> elements = IndexCache.elements(resource);
+        assertEquals("[y.C1]", elements.toString());
+        assertSame("reused while unmodified", elements, IndexCache.elements(resource));
+        TestUtils.makeSource(src, "y.C2",
+                "@x.A",
+                "public class C2 {}");
+        TestUtils.runApt(src, null, clz, new File[0], null);
+        index.setLastModified(index.lastModified() + 2000);
+        elements = IndexCache.elements(resource);
+        assertEquals("reread after modification", "[y.C1, y.C2]", elements.toString());
+        Class<? extends Annotation> a = loader.loadClass("x.A").asSubclass(Annotation.class);
+        int cnt = 0;
+        for (IndexItem<?,Object> item : Index.load(a, Object.class, loader)) {
+            cnt++;
+        }
+        assertEquals(2, cnt);
+        assertSame(elements, IndexCache.elements(resource));
+        Index.clearCache();
+        assertNotSame(elements, IndexCache.elements(resource));
+    }
+
+    @Test public void mappedRead() throws Exception {
+        TestUtils.makeSource(src, "x.A",
+                "import java.lang.annotation.*;",
+                "@Target({ElementType.TYPE, ElementType.METHOD, ElementType.FIELD})",
+                "@net.java.sezpoz.Indexable",
+                "public @interface A {",
+                "String s();",
+                "}");
+        TestUtils.makeSource(src, "y.C1",
+                "@x.A(s=\"hello\")",
+                "public class C1 {}");
+        TestUtils.runApt(src, null, clz, new File[0], null);
+        URL resource = new File(clz, "META-INF/annotations/x.A").toURI().toURL();
+        assertFalse("copied by default", IndexCache.read(resource).isDirect());
+        assertTrue("mapped on request", IndexCache.read(resource, true).isDirect());
+        assertEquals("[y.C1{s=hello}]", IndexFile.read(IndexCache.read(resource, true)).toString());
+        assertEquals("[y.C1{s=hello}]", IndexCache.elements(resource).toString());
+    }
+
+    @Test public void rewrittenWhileInUse() throws Exception {
+        TestUtils.makeSource(src, "x.A",
+                "import java.lang.annotation.*;",
+                "@Target({ElementType.TYPE, ElementType.METHOD, ElementType.FIELD})",
+                "@net.java.sezpoz.Indexable",
+                "public @interface A {",
+                "String value() default \"\";",
+                "}");
+        TestUtils.makeSource(src, "y.C",
+                "@x.A(\"hi\")",
+                "public class C {}");
+        TestUtils.runApt(src, null, clz, new File[0], null);
+        Class<? extends Annotation> a = loader.loadClass("x.A").asSubclass(Annotation.class);
+        List<IndexItem<?,Object>> items = new ArrayList<IndexItem<?,Object>>();
+        for (IndexItem<?,Object> item : Index.load(a, Object.class, loader)) {
+            items.add(item);
+        }
+        TestUtils.makeSource(src, "y.C",
+                "@x.A",
+                "public class C {}");
+        TestUtils.runApt(src, "C", clz, new File[] {clz}, null);
+        assertEquals(1, items.size());
+        assertEquals("hi", a.getMethod("value").invoke(items.get(0).annotation()));
+    }
+
+    @Test public void aggregateIndex() throws Exception {
+        TestUtils.makeSource(src, "x.A",
+                "import java.lang.annotation.*;",
+                "@Target({ElementType.TYPE, ElementType.METHOD, ElementType.FIELD})",
+                "@net.java.sezpoz.Indexable",
+                "public @interface A {}");
+        TestUtils.makeSource(src, "x.B",
+                "import java.lang.annotation.*;",
+                "@Target({ElementType.TYPE, ElementType.METHOD, ElementType.FIELD})",
+                "@net.java.sezpoz.Indexable",
+                "public @interface B {}");
+        TestUtils.makeSource(src, "y.C1",
+                "@x.A",
+                "public class C1 {}");
+        TestUtils.makeSource(src, "y.C2",
+                "@x.B",
+                "public class C2 {}");
+        TestUtils.runApt(src, null, clz, new File[0], null, "sezpoz.aggregate=true");
+        assertEquals("per-annotation files not read when an aggregate is present", "[annotations.index]", indicesLoaded(() -> {
+            for (String ann : new String[] {"x.A", "x.B"}) {
+                Class<? extends Annotation> a = loader.loadClass(ann).asSubclass(Annotation.class);
+                assertEquals(ann.equals("x.A") ? "[y.C1]" : "[y.C2]", classNames(Index.load(a, Object.class, loader)));
+            }
+        }).toString());
+        // Turning the option off must not leave the old aggregate to shadow new entries.
+        File aggregate = new File(clz, Indexer.AGGREGATE_INDEX);
+        byte[] oldAggregate = Files.readAllBytes(aggregate.toPath());
+        TestUtils.makeSource(src, "y.C3",
+                "@x.A",
+                "public class C3 {}");
+        TestUtils.runApt(src, null, clz, new File[0], null);
+        assertFalse("stale aggregate deleted", aggregate.exists());
+        Class<? extends Annotation> a = loader.loadClass("x.A").asSubclass(Annotation.class);
+        assertEquals("[y.C1, y.C3]", classNames(Index.load(a, Object.class, loader)));
+        // Even if it is left behind (say in a JAR), a section not matching its per-annotation file is ignored.
+        Files.write(aggregate.toPath(), oldAggregate);
+        loader = new URLClassLoader(new URL[] {clz.toURI().toURL()});
+        a = loader.loadClass("x.A").asSubclass(Annotation.class);
+        assertEquals("[y.C1, y.C3]", classNames(Index.load(a, Object.class, loader)));
+        assertEquals("[y.C3]", classNames(Index.load(a, Object.class, loader).lookup("y.C3")));
+        assertTrue(IndexCache.mightContain(loader, new File(clz, "META-INF/annotations/x.A").toURI().toURL(), "x.A", "y.C3"));
+        Class<? extends Annotation> b = loader.loadClass("x.B").asSubclass(Annotation.class);
+        assertEquals("unchanged section still used", "[]",
+                indicesLoaded(() -> assertEquals("[y.C2]", classNames(Index.load(b, Object.class, loader)))).toString());
+    }
+
+    @Test public void mergedWithoutAggregate() throws Exception {
+        TestUtils.makeSource(src, "x.A",
+                "import java.lang.annotation.*;",
+                "@Target({ElementType.TYPE, ElementType.METHOD, ElementType.FIELD})",
+                "@net.java.sezpoz.Indexable",
+                "public @interface A {}");
+        TestUtils.runApt(src, null, clz, new File[0], null);
+        File src1 = new File(dir, "src1");
+        File clz1 = new File(dir, "clz1");
+        TestUtils.makeSource(src1, "y.C1",
+                "@x.A",
+                "public class C1 {}");
+        TestUtils.runApt(src1, null, clz1, new File[] {clz}, null);
+        File src2 = new File(dir, "src2");
+        File clz2 = new File(dir, "clz2");
+        TestUtils.makeSource(src2, "y.C2",
+                "@x.A",
+                "public class C2 {}");
+        TestUtils.runApt(src2, null, clz2, new File[] {clz}, null, "sezpoz.aggregate=true");
+        File merged = new File(dir, "merged");
+        Merger.merge(Arrays.asList(clz1, clz2), merged, false, false);
+        // As a careless shading configuration would: merged per-annotation file, but one input's own aggregate.
+        File jar = new File(dir, "shaded.jar");
+        try (JarOutputStream jos = new JarOutputStream(new FileOutputStream(jar))) {
+            jos.putNextEntry(new JarEntry("META-INF/annotations/x.A"));
+            jos.write(Files.readAllBytes(new File(merged, "META-INF/annotations/x.A").toPath()));
+            jos.putNextEntry(new JarEntry(Indexer.AGGREGATE_INDEX));
+            jos.write(Files.readAllBytes(new File(clz2, Indexer.AGGREGATE_INDEX).toPath()));
+        }
+        loader = new URLClassLoader(new URL[] {clz.toURI().toURL(), jar.toURI().toURL()});
+        Class<? extends Annotation> a = loader.loadClass("x.A").asSubclass(Annotation.class);
+        assertEquals("[y.C1, y.C2]", classNames(Index.load(a, Object.class, loader)));
+        assertEquals("[y.C1]", classNames(Index.load(a, Object.class, loader).lookup("y.C1")));
+    }
+
+    @Test public void missingAggregateProbedOnce() throws Exception {
+        TestUtils.makeSource(src, "x.A",
+                "import java.lang.annotation.*;",
+                "@Target({ElementType.TYPE, ElementType.METHOD, ElementType.FIELD})",
+                "@net.java.sezpoz.Indexable",
+                "public @interface A {}");
+        TestUtils.makeSource(src, "y.C1",
+                "@x.A",
+                "public class C1 {}");
+        TestUtils.runApt(src, null, clz, new File[0], null);
+        Class<? extends Annotation> a = loader.loadClass("x.A").asSubclass(Annotation.class);
+        assertEquals("missing aggregate probed once", "[annotations.index, annotations/x.A]", indicesLoaded(() -> {
+            for (int i = 0; i < 3; i++) {
+                assertEquals("[y.C1]", classNames(Index.load(a, Object.class, loader)));
+            }
+        }).toString());
+        TestUtils.runApt(src, null, clz, new File[0], null, "sezpoz.aggregate=true");
+        assertEquals("new aggregate noticed", "[annotations.index]",
+                indicesLoaded(() -> assertEquals("[y.C1]", classNames(Index.load(a, Object.class, loader)))).toString());
+    }
+
+    private interface Block {
+        void run() throws Exception;
+    }
+
+    /** Runs some code and reports which index files it loaded, relative to {@code META-INF}. */
+    private static List<String> indicesLoaded(Block block) throws Exception {
+        List<String> loaded = new ArrayList<String>();
+        Handler handler = new Handler() {
+            @Override public void publish(LogRecord record) {
+                if (record.getMessage().startsWith("Loading index from")) {
+                    loaded.add(String.valueOf(record.getParameters()[0]).replaceFirst(".+/META-INF/", ""));
+                }
+            }
+            @Override public void flush() {}
+            @Override public void close() {}
+        };
+        Logger logger = Logger.getLogger(IndexCache.class.getName());
+        Level level = logger.getLevel();
+        logger.setLevel(Level.FINE);
+        logger.addHandler(handler);
+        try {
+            block.run();
+        } finally {
+            logger.removeHandler(handler);
+            logger.setLevel(level);
+        }
+        return loaded;
+    }
+
+    @Test public void aggregateSummary() throws Exception {
+        TestUtils.makeSource(src, "x.A",
+                "import java.lang.annotation.*;",
+                "@Target({ElementType.TYPE, ElementType.METHOD, ElementType.FIELD})",
+                "@net.java.sezpoz.Indexable",
+                "public @interface A {}");
+        TestUtils.makeSource(src, "x.B",
+                "import java.lang.annotation.*;",
+                "@Target({ElementType.TYPE, ElementType.METHOD, ElementType.FIELD})",
+                "@net.java.sezpoz.Indexable",
+                "public @interface B {}");
+        TestUtils.makeSource(src, "y.C1",
+                "@x.A @x.B",
+                "public class C1 {}");
+        TestUtils.runApt(src, null, clz, new File[0], null, "sezpoz.aggregate=true");
+        File src2 = new File(dir, "src2");
+        File clz2 = new File(dir, "clz2");
+        TestUtils.makeSource(src2, "y.C2",
+                "public class C2 {",
+                "@x.A public static final Object f = null;",
+                "}");
+        TestUtils.runApt(src2, null, clz2, new File[] {clz}, null, "sezpoz.aggregate=true");
+        // Break the only index in the second directory; it must not be read when looking up y.C1.
+        File aggregate2 = new File(clz2, Indexer.AGGREGATE_INDEX);
+        byte[] data = Files.readAllBytes(aggregate2.toPath());
+        String content = new String(data, StandardCharsets.ISO_8859_1);
+        int section = content.indexOf("SZPZ");
+        assertTrue(section > 0);
+        data[section] = 'X';
+        Files.write(aggregate2.toPath(), data);
+        loader = new URLClassLoader(new URL[] {clz.toURI().toURL(), clz2.toURI().toURL()});
+        URL resource2 = new File(clz2, "META-INF/annotations/x.A").toURI().toURL();
+        assertTrue(IndexCache.mightContain(loader, resource2, "x.A", "y.C2"));
+        assertFalse(IndexCache.mightContain(loader, resource2, "x.A", "y.C1"));
+        assertTrue("no section at all, so cannot rule out", IndexCache.mightContain(loader, new File(clz2, "META-INF/annotations/x.B").toURI().toURL(), "x.B", "y.C2"));
+        Class<? extends Annotation> a = loader.loadClass("x.A").asSubclass(Annotation.class);
+        assertEquals("[y.C1]", classNames(Index.load(a, Object.class, loader).lookup("y.C1")));
+        assertEquals("[]", classNames(Index.load(a, Object.class, loader).lookup("y.C3")));
+        try {
+            classNames(Index.load(a, Object.class, loader).lookup("y.C2"));
+            fail("corrupt section read");
+        } catch (IndexError x) {
+            // expected
+        }
+        assertEquals(Arrays.asList(new File(clz, "META-INF/annotations/x.A").toURI().toURL(), resource2), IndexCache.resourcesFromAggregates(loader, "x.A"));
+        assertEquals(Arrays.asList(new File(clz, "META-INF/annotations/x.B").toURI().toURL()), IndexCache.resourcesFromAggregates(loader, "x.B"));
+        assertEquals(Arrays.asList(), IndexCache.resourcesFromAggregates(loader, "x.Nonexistent"));
+    }
+
+    @Test public void where() throws Exception {
+        TestUtils.makeSource(src, "x.A",
+                "import java.lang.annotation.*;",
+                "@Target({ElementType.TYPE, ElementType.METHOD, ElementType.FIELD})",
+                "@net.java.sezpoz.Indexable(indexedBy={\"type\", \"cat\", \"es\"})",
+                "public @interface A {",
+                "int type();",
+                "String cat() default \"misc\";",
+                "E[] es() default {};",
+                "String other() default \"\";",
+                "}");
+        TestUtils.makeSource(src, "x.E",
+                "public enum E {ONE, TWO}");
+        TestUtils.makeSource(src, "y.C1",
+                "@x.A(type=1, es=x.E.ONE, other=\"o\")",
+                "public class C1 {}");
+        TestUtils.makeSource(src, "y.C2",
+                "@x.A(type=2, cat=\"tools\", es={x.E.ONE, x.E.TWO})",
+                "public class C2 {}");
+        TestUtils.makeSource(src, "y.C3",
+                "@x.A(type=1, cat=\"tools\", other=\"o\")",
+                "public class C3 {}");
+        TestUtils.runApt(src, null, clz, new File[0], null);
+        List<SerAnnotatedElement> elements = IndexCache.elements(new File(clz, "META-INF/annotations/x.A").toURI().toURL());
+        assertArrayEquals(new int[] {0, 2}, IndexFile.lookup(elements, "type", 1));
+        assertNull("not indexed", IndexFile.lookup(elements, "other", "o"));
+        Class<? extends Annotation> a = loader.loadClass("x.A").asSubclass(Annotation.class);
+        Object one = loader.loadClass("x.E").getField("ONE").get(null);
+        assertEquals("[y.C1, y.C3]", classNames(Index.load(a, Object.class, loader).where("type", 1)));
+        assertEquals("[y.C2]", classNames(Index.load(a, Object.class, loader).where("type", 2)));
+        assertEquals("[]", classNames(Index.load(a, Object.class, loader).where("type", 3)));
+        assertEquals("default values", "[y.C1]", classNames(Index.load(a, Object.class, loader).where("cat", "misc")));
+        assertEquals("array elements", "[y.C1, y.C2]", classNames(Index.load(a, Object.class, loader).where("es", one)));
+        assertEquals("combined", "[y.C3]", classNames(Index.load(a, Object.class, loader).where("type", 1).where("cat", "tools")));
+        assertEquals("unindexed", "[y.C1, y.C3]", classNames(Index.load(a, Object.class, loader).where("other", "o")));
+        assertEquals("mixed", "[y.C3]", classNames(Index.load(a, Object.class, loader).where("other", "o").where("cat", "tools")));
+        try {
+            Index.load(a, Object.class, loader).where("nonexistent", 1);
+            fail();
+        } catch (IllegalArgumentException x) {
+            // expected
+        }
+    }
+
+    @Test public void lookup() throws Exception {
+        TestUtils.makeSource(src, "x.A",
+                "import java.lang.annotation.*;",
+                "@Target({ElementType.TYPE, ElementType.METHOD, ElementType.FIELD})",
+                "@net.java.sezpoz.Indexable",
+                "public @interface A {}");
+        TestUtils.makeSource(src, "y.C",
+                "@x.A",
+                "public class C {",
+                "@x.A public static Object m() {return null;}",
+                "@x.A public static class N {}",
+                "}");
+        TestUtils.makeSource(src, "y.z.D",
+                "public class D {",
+                "@x.A public static final Object f = null;",
+                "}");
+        TestUtils.makeSource(src, "w.E",
+                "@x.A",
+                "public class E {}");
+        TestUtils.runApt(src, null, clz, new File[0], null);
+        File index = new File(clz, "META-INF/annotations/x.A");
+        List<SerAnnotatedElement> elements = IndexCache.elements(index.toURI().toURL());
+        assertArrayEquals(new int[] {1, 2}, IndexFile.lookupClassName(elements, "y.C", false));
+        Class<? extends Annotation> a = loader.loadClass("x.A").asSubclass(Annotation.class);
+        for (boolean serialized : new boolean[] {false, true}) {
+            if (serialized) {
+                // Older indices are not known to be sorted, so are scanned.
+                try (InputStream is = new FileInputStream(index)) {
+                    elements = IndexFile.read(is);
+                }
+                try (OutputStream os = new FileOutputStream(index)) {
+                    IndexFile.writeSerialized(os, elements);
+                }
+                Index.clearCache();
+                assertNull(IndexFile.lookupClassName(IndexCache.elements(index.toURI().toURL()), "y.C", false));
+            }
+            assertEquals("[y.C, y.C]", classNames(Index.load(a, Object.class, loader).lookup("y.C")));
+            assertEquals("[y.C$N]", classNames(Index.load(a, Object.class, loader).lookup("y.C$N")));
+            assertEquals("[]", classNames(Index.load(a, Object.class, loader).lookup("y.B")));
+            assertEquals("[y.C, y.C, y.C$N, y.z.D]", classNames(Index.load(a, Object.class, loader).lookupPrefix("y.")));
+            assertEquals("[y.z.D]", classNames(Index.load(a, Object.class, loader).lookupPrefix("y.z.")));
+        }
+    }
+
+    private static String classNames(Iterable<? extends IndexItem<?,?>> index) {
+        List<String> names = new ArrayList<String>();
+        for (IndexItem<?,?> item : index) {
+            names.add(item.className());
+        }
+        return names.toString();
     }
 
     // XXX need to test:
@@ -32,13 +32,40 @@
 
 package net.java.sezpoz.impl;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.TypeElement;
+import javax.tools.JavaCompiler;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import net.java.sezpoz.Indexable;
 import static org.junit.Assert.*;
 import org.junit.Before;
 import org.junit.Test;
@@ -303,6 +330,405 @@ public class IndexerTest {
                 )), TestUtils.findMetadata(clz2));
     }
 
+    @Test public void staleEntries() throws Exception {
+        TestUtils.makeSource(src, "x.A",
+                "import java.lang.annotation.*;",
+                "@Target({ElementType.TYPE, ElementType.METHOD, ElementType.FIELD})",
+                "@Retention(RetentionPolicy.SOURCE)",
+                "@net.java.sezpoz.Indexable",
+                "public @interface A {}");
+        TestUtils.makeSource(src, "x.B",
+                "import java.lang.annotation.*;",
+                "@Target({ElementType.TYPE, ElementType.METHOD, ElementType.FIELD})",
+                "@Retention(RetentionPolicy.SOURCE)",
+                "@net.java.sezpoz.Indexable",
+                "public @interface B {}");
+        TestUtils.makeSource(src, "y.C1",
+                "@x.A",
+                "public class C1 {}");
+        TestUtils.makeSource(src, "y.C2",
+                "@x.A",
+                "public class C2 {}");
+        TestUtils.makeSource(src, "y.C3",
+                "public class C3 {",
+                "@x.A public static final Object f = null;",
+                "}");
+        TestUtils.makeSource(src, "y.C4",
+                "@x.B",
+                "public class C4 {}");
+        TestUtils.runApt(src, null, clz, null, null, "sezpoz.aggregate=true");
+        Map<String,List<String>> expected = new HashMap<String,List<String>>();
+        expected.put("x.A", Arrays.asList("y.C1", "y.C2", "y.C3#f"));
+        expected.put("x.B", Collections.singletonList("y.C4"));
+        assertEquals(expected, TestUtils.findMetadata(clz));
+        TestUtils.makeSource(src, "y.C1",
+                "public class C1 {}");
+        new File(src, "y/C2.java").delete();
+        new File(clz, "y/C2.class").delete();
+        new File(src, "y/C4.java").delete();
+        new File(clz, "y/C4.class").delete();
+        TestUtils.runApt(src, "C1", clz, new File[] {clz}, null, "sezpoz.aggregate=true");
+        expected.clear();
+        expected.put("x.A", Collections.singletonList("y.C3#f"));
+        expected.put("x.B", Collections.<String>emptyList());
+        assertEquals("annotation removed from C1, C2 and C4 deleted", expected, TestUtils.findMetadata(clz));
+        assertEquals(expected, findAggregateMetadata());
+    }
+
+    @Test public void incrementalOption() throws Exception {
+        Indexer indexer = new Indexer();
+        indexer.init((ProcessingEnvironment) Proxy.newProxyInstance(IndexerTest.class.getClassLoader(), new Class<?>[] {ProcessingEnvironment.class},
+                (proxy, method, args) -> method.getName().equals("getOptions") ? Collections.singletonMap("sezpoz.incremental", "true") : null));
+        assertTrue(indexer.getSupportedOptions().contains("org.gradle.annotation.processing.aggregating"));
+        assertFalse(new Indexer().getSupportedOptions().contains("org.gradle.annotation.processing.aggregating"));
+        TestUtils.makeSource(src, "x.A",
+                "import java.lang.annotation.*;",
+                "@Target({ElementType.TYPE, ElementType.METHOD, ElementType.FIELD})",
+                "@Retention(RetentionPolicy.SOURCE)",
+                "@net.java.sezpoz.Indexable",
+                "public @interface A {}");
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        TestUtils.runApt(src, null, clz, null, baos, "sezpoz.incremental=true");
+        baos.flush();
+        assertTrue("output warns about @Retention: " + baos, baos.toString().contains("@Retention"));
+    }
+
+    @Test public void multipleRounds() throws Exception {
+        TestUtils.makeSource(src, "x.A",
+                "import java.lang.annotation.*;",
+                "@Target({ElementType.TYPE, ElementType.METHOD, ElementType.FIELD})",
+                "@Retention(RetentionPolicy.SOURCE)",
+                "@net.java.sezpoz.Indexable",
+                "public @interface A {}");
+        TestUtils.makeSource(src, "y.C1",
+                "@x.A",
+                "public class C1 {}");
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        clz.mkdirs();
+        try (StandardJavaFileManager fm = javac.getStandardFileManager(null, null, null)) {
+            JavaCompiler.CompilationTask task = javac.getTask(null, fm, null,
+                    Arrays.asList("-classpath", new File(Indexable.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath(),
+                            "-d", clz.getPath(), "-Asezpoz.quiet=true", "-Asezpoz.aggregate=true"),
+                    null, fm.getJavaFileObjects(new File(src, "x/A.java"), new File(src, "y/C1.java")));
+            task.setProcessors(Arrays.asList(new Indexer(), new GeneratingProcessor()));
+            assertTrue(task.call());
+        }
+        Map<String,List<String>> expected = Collections.singletonMap("x.A", Arrays.asList("y.C1", "y.C2", "y.C3"));
+        assertEquals(expected, TestUtils.findMetadata(clz));
+        assertEquals(expected, findAggregateMetadata());
+        assertEquals(Arrays.asList("# informational; use java -jar sezpoz.jar to see authoritative contents", "y.C1", "y.C2", "y.C3"),
+                Files.readAllLines(new File(clz, Indexer.METAINF_ANNOTATIONS + "x.A.txt").toPath()));
+    }
+
+    /** Generates a new annotated class in each of the first two rounds. */
+    @SupportedAnnotationTypes("*")
+    private static final class GeneratingProcessor extends AbstractProcessor {
+        private int round;
+        @Override public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+            if (++round < 3) {
+                try (Writer w = processingEnv.getFiler().createSourceFile("y.C" + (round + 1)).openWriter()) {
+                    w.write("package y; @x.A public class C" + (round + 1) + " {}");
+                } catch (IOException x) {
+                    throw new AssertionError(x);
+                }
+            }
+            return false;
+        }
+        @Override public SourceVersion getSupportedSourceVersion() {
+            return SourceVersion.latest();
+        }
+    }
+
+    @Test public void registryClassNames() throws Exception {
+        TestUtils.makeSource(src, "x.A",
+                "import java.lang.annotation.*;",
+                "@Target({ElementType.TYPE, ElementType.METHOD, ElementType.FIELD})",
+                "@Retention(RetentionPolicy.SOURCE)",
+                "@net.java.sezpoz.Indexable",
+                "public @interface A {}");
+        TestUtils.makeSource(src, "y.C$1",
+                "public class C$1 {",
+                "@x.A public static class N {}",
+                "}");
+        TestUtils.runApt(src, null, clz, null, null, "sezpoz.registry=true");
+        assertEquals(Collections.singletonMap("x.A", Collections.singletonList("y.C$1$N")), TestUtils.findMetadata(clz));
+        assertTrue(new File(clz, "x/A$$Index.class").isFile());
+        TestUtils.clearDir(clz);
+        TestUtils.makeSource(src, "y.C$1",
+                "class C$1 {",
+                "@x.A public static class N {}",
+                "}");
+        TestUtils.runAptExpectingErrors(src, null, clz, null, "must be public to list y.C$1$N in the registry of x.A", "sezpoz.registry=true");
+    }
+
+    @Test public void annotationsOption() throws Exception {
+        TestUtils.makeSource(src, "x.A",
+                "import java.lang.annotation.*;",
+                "@Target({ElementType.TYPE, ElementType.METHOD, ElementType.FIELD})",
+                "@Retention(RetentionPolicy.SOURCE)",
+                "@net.java.sezpoz.Indexable",
+                "public @interface A {}");
+        TestUtils.makeSource(src, "x.B",
+                "import java.lang.annotation.*;",
+                "@Target({ElementType.TYPE, ElementType.METHOD, ElementType.FIELD})",
+                "@Retention(RetentionPolicy.SOURCE)",
+                "@net.java.sezpoz.Indexable",
+                "public @interface B {}");
+        TestUtils.makeSource(src, "y.C1",
+                "@x.A @Deprecated",
+                "public class C1 {}");
+        TestUtils.makeSource(src, "y.C2",
+                "@x.B",
+                "public class C2 {}");
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        TestUtils.runApt(src, null, clz, null, baos, "sezpoz.annotations=x.A");
+        baos.flush();
+        assertEquals(Collections.singletonMap("x.A", Collections.singletonList("y.C1")), TestUtils.findMetadata(clz));
+        assertTrue("output warns about x.B: " + baos, baos.toString().contains("sezpoz.annotations"));
+        TestUtils.clearDir(clz);
+        TestUtils.runApt(src, null, clz, null, null);
+        Map<String,List<String>> both = new HashMap<String,List<String>>();
+        both.put("x.A", Collections.singletonList("y.C1"));
+        both.put("x.B", Collections.singletonList("y.C2"));
+        assertEquals(both, TestUtils.findMetadata(clz));
+        TestUtils.makeSource(src, "y.C1",
+                "@Deprecated",
+                "public class C1 {}");
+        baos = new ByteArrayOutputStream();
+        TestUtils.runApt(src, "C1", clz, new File[] {clz}, baos, "sezpoz.annotations=x.A");
+        both.put("x.A", Collections.<String>emptyList());
+        assertEquals("pruned though no source uses x.A", both, TestUtils.findMetadata(clz));
+        assertFalse("option recognized: " + baos, baos.toString().contains("not recognized"));
+    }
+
+    @Test public void txtOption() throws Exception {
+        TestUtils.makeSource(src, "x.A",
+                "import java.lang.annotation.*;",
+                "@Target({ElementType.TYPE, ElementType.METHOD, ElementType.FIELD})",
+                "@Retention(RetentionPolicy.SOURCE)",
+                "@net.java.sezpoz.Indexable",
+                "public @interface A {",
+                "int i();",
+                "}");
+        TestUtils.makeSource(src, "x.B",
+                "import java.lang.annotation.*;",
+                "@Target({ElementType.TYPE, ElementType.METHOD, ElementType.FIELD})",
+                "@Retention(RetentionPolicy.SOURCE)",
+                "@net.java.sezpoz.Indexable",
+                "public @interface B {}");
+        TestUtils.makeSource(src, "y.C1",
+                "@x.A(i=1)",
+                "public class C1 {}");
+        TestUtils.makeSource(src, "y.C2",
+                "@x.B",
+                "public class C2 {}");
+        TestUtils.runApt(src, null, clz, null, null, "sezpoz.txt=none");
+        assertEquals(2, TestUtils.findMetadata(clz).size());
+        assertFalse(new File(clz, Indexer.METAINF_ANNOTATIONS + "x.A.txt").exists());
+        assertFalse(new File(clz, Indexer.SUMMARY).exists());
+        TestUtils.clearDir(clz);
+        TestUtils.runApt(src, null, clz, null, null, "sezpoz.txt=summary");
+        assertEquals(2, TestUtils.findMetadata(clz).size());
+        assertFalse(new File(clz, Indexer.METAINF_ANNOTATIONS + "x.A.txt").exists());
+        assertEquals(Arrays.asList("# informational; use java -jar sezpoz.jar to see authoritative contents",
+                "", "x.A:", "  y.C1{i=1}", "", "x.B:", "  y.C2"),
+                Files.readAllLines(new File(clz, Indexer.SUMMARY).toPath()));
+    }
+
+    @Test public void aggregateIndex() throws Exception {
+        TestUtils.makeSource(src, "x.A",
+                "import java.lang.annotation.*;",
+                "@Target({ElementType.TYPE, ElementType.METHOD, ElementType.FIELD})",
+                "@Retention(RetentionPolicy.SOURCE)",
+                "@net.java.sezpoz.Indexable",
+                "public @interface A {",
+                "int i();",
+                "}");
+        TestUtils.makeSource(src, "x.B",
+                "import java.lang.annotation.*;",
+                "@Target({ElementType.TYPE, ElementType.METHOD, ElementType.FIELD})",
+                "@Retention(RetentionPolicy.SOURCE)",
+                "@net.java.sezpoz.Indexable",
+                "public @interface B {}");
+        TestUtils.makeSource(src, "y.C1",
+                "@x.A(i=1)",
+                "public class C1 {}");
+        TestUtils.makeSource(src, "y.C2",
+                "@x.B",
+                "public class C2 {}");
+        TestUtils.runApt(src, null, clz, null, null, "sezpoz.aggregate=true");
+        Map<String,List<String>> expected = new HashMap<String,List<String>>();
+        expected.put("x.A", Collections.singletonList("y.C1{i=1}"));
+        expected.put("x.B", Collections.singletonList("y.C2"));
+        assertEquals(expected, TestUtils.findMetadata(clz));
+        assertEquals(expected, findAggregateMetadata());
+        TestUtils.makeSource(src, "y.C3",
+                "@x.A(i=3)",
+                "public class C3 {}");
+        TestUtils.runApt(src, "C3", clz, new File[] {clz}, null, "sezpoz.aggregate=true");
+        expected.put("x.A", Arrays.asList("y.C1{i=1}", "y.C3{i=3}"));
+        assertEquals(expected, TestUtils.findMetadata(clz));
+        assertEquals("annotations not compiled this time are retained", expected, findAggregateMetadata());
+    }
+
+    private Map<String,List<String>> findAggregateMetadata() throws Exception {
+        Map<String,List<String>> metadata = new HashMap<String,List<String>>();
+        try (InputStream is = new FileInputStream(new File(clz, Indexer.AGGREGATE_INDEX))) {
+            for (Map.Entry<String,List<SerAnnotatedElement>> entry : IndexFile.readAggregate(is).entrySet()) {
+                List<String> entries = new ArrayList<String>();
+                for (SerAnnotatedElement el : entry.getValue()) {
+                    entries.add(el.toString());
+                }
+                metadata.put(entry.getKey(), entries);
+            }
+        }
+        return metadata;
+    }
+
+    @Test public void merge() throws Exception {
+        String[] annotation = {
+                "import java.lang.annotation.*;",
+                "@Target({ElementType.TYPE, ElementType.METHOD, ElementType.FIELD})",
+                "@Retention(RetentionPolicy.SOURCE)",
+                "@net.java.sezpoz.Indexable",
+                "public @interface A {",
+                "int i();",
+                "}"};
+        File src1 = new File(dir, "src1");
+        TestUtils.makeSource(src1, "x.A", annotation);
+        TestUtils.makeSource(src1, "y.C2", "@x.A(i=2) public class C2 {}");
+        TestUtils.makeSource(src1, "y.C1", "@x.A(i=1) public class C1 {}");
+        File clz1 = new File(dir, "clz1");
+        TestUtils.runApt(src1, null, clz1, null, null);
+        File src2 = new File(dir, "src2");
+        TestUtils.makeSource(src2, "x.A", annotation);
+        TestUtils.makeSource(src2, "y.C1", "@x.A(i=9) public class C1 {}");
+        TestUtils.makeSource(src2, "y.C3", "@x.A(i=3) public class C3 {}");
+        File clz2 = new File(dir, "clz2");
+        TestUtils.runApt(src2, null, clz2, null, null, "sezpoz.aggregate=true");
+        File jar2 = new File(dir, "two.jar");
+        try (JarOutputStream jos = new JarOutputStream(new FileOutputStream(jar2))) {
+            for (String name : new String[] {Indexer.METAINF_ANNOTATIONS + "x.A", Indexer.AGGREGATE_INDEX}) {
+                jos.putNextEntry(new JarEntry(name));
+                jos.write(Files.readAllBytes(new File(clz2, name).toPath()));
+            }
+        }
+        File merged = new File(dir, "merged");
+        assertEquals(Collections.singletonMap("x.A", 3), Merger.merge(Arrays.asList(clz1, jar2), merged, true, false));
+        Map<String,List<String>> expected = Collections.singletonMap("x.A", Arrays.asList("y.C1{i=1}", "y.C2{i=2}", "y.C3{i=3}"));
+        assertEquals("first input wins, sorted by key", expected, TestUtils.findMetadata(merged));
+        clz = merged;
+        assertEquals(expected, findAggregateMetadata());
+        PrintStream err = System.err;
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        System.setErr(new PrintStream(errors, true, "UTF-8"));
+        try {
+            Merger.merge(Arrays.asList(clz1, jar2), merged, false, false);
+        } finally {
+            System.setErr(err);
+        }
+        assertEquals(expected, TestUtils.findMetadata(merged));
+        assertFalse("stale aggregate deleted", new File(merged, Indexer.AGGREGATE_INDEX).exists());
+        assertTrue(errors.toString("UTF-8"), errors.toString("UTF-8").contains(jar2 + " contains " + Indexer.AGGREGATE_INDEX));
+        assertFalse(errors.toString("UTF-8"), errors.toString("UTF-8").contains(clz1.toString()));
+    }
+
+    @Test public void lazyValues() throws Exception {
+        TreeMap<String,Object> values = new TreeMap<String,Object>();
+        values.put("i", 7);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        IndexFile.write(baos, Arrays.asList(new SerAnnotatedElement("x.Good", null, false, values), new SerAnnotatedElement("x.Bad", null, false, values)));
+        byte[] data = baos.toByteArray();
+        data[data.length - 5] = '?'; // tag of last value
+        List<SerAnnotatedElement> elements = IndexFile.read(new ByteArrayInputStream(data));
+        assertEquals("x.Good", elements.get(0).className);
+        assertEquals("x.Bad", elements.get(1).className);
+        assertEquals(values, elements.get(0).values());
+        try {
+            elements.get(1).values();
+            fail();
+        } catch (IllegalStateException x) {
+            // values only decoded on demand
+        }
+        baos = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(baos)) {
+            oos.writeObject(IndexFile.read(ByteBuffer.wrap(data)).get(0));
+        }
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray()))) {
+            assertEquals("x.Good{i=7}", ois.readObject().toString());
+        }
+    }
+
+    @Test public void corruptCounts() throws Exception {
+        TreeMap<String,Object> values = new TreeMap<String,Object>();
+        values.put("i", 7);
+        values.put("l", new ArrayList<Object>(Arrays.asList("a", "b")));
+        List<SerAnnotatedElement> elements = Arrays.asList(new SerAnnotatedElement("x.C1", null, false, values), new SerAnnotatedElement("x.C2", "f", false, values));
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        IndexFile.write(baos, elements, Collections.singletonMap("i", (Object) null));
+        byte[] index = baos.toByteArray();
+        baos = new ByteArrayOutputStream();
+        IndexFile.writeAggregate(baos, Collections.singletonMap("x.A", elements));
+        byte[] aggregate = baos.toByteArray();
+        for (byte[] data : new byte[][] {index, aggregate}) {
+            for (int i = 0; i < data.length; i++) {
+                decodeFully(Arrays.copyOf(data, i));
+                for (byte garbage : new byte[] {(byte) 0x7f, (byte) 0x80, (byte) 0xff}) {
+                    byte[] garbled = data.clone();
+                    garbled[i] = garbage;
+                    decodeFully(garbled);
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes everything in an index or aggregated index, failing the test on anything but the usual exceptions for a corrupt index.
+     */
+    private static void decodeFully(byte[] data) {
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            List<ByteBuffer> indices = IndexFile.isAggregate(data) ? new ArrayList<ByteBuffer>(IndexFile.sections(buf).values()) : Collections.singletonList(buf);
+            for (ByteBuffer b : indices) {
+                List<SerAnnotatedElement> elements = IndexFile.read(b);
+                for (SerAnnotatedElement el : elements) {
+                    el.values();
+                }
+                IndexFile.lookup(elements, "i", 7);
+            }
+        } catch (IOException | IllegalStateException x) {
+            // reported as corrupt
+        }
+    }
+
+    @Test public void keys() throws Exception {
+        TreeMap<String,Object> values = new TreeMap<String,Object>();
+        SerAnnotatedElement method = new SerAnnotatedElement("x.C", "m", true, values);
+        assertEquals("x.C#m()", method.key());
+        assertSame("computed once", method.key(), method.key());
+        assertEquals("x.C#f", new SerAnnotatedElement("x.C", "f", false, values).key());
+        assertEquals("x.C", new SerAnnotatedElement("x.C", null, false, values).key());
+    }
+
+    @Test public void indexedBy() throws Exception {
+        TestUtils.makeSource(src, "x.A",
+                "import java.lang.annotation.*;",
+                "@Target({ElementType.TYPE, ElementType.METHOD, ElementType.FIELD})",
+                "@Retention(RetentionPolicy.SOURCE)",
+                "@net.java.sezpoz.Indexable(indexedBy=\"nonexistent\")",
+                "public @interface A {}");
+        TestUtils.runAptExpectingErrors(src, null, clz, null, "no attribute nonexistent");
+        TestUtils.makeSource(src, "x.A",
+                "import java.lang.annotation.*;",
+                "@Target({ElementType.TYPE, ElementType.METHOD, ElementType.FIELD})",
+                "@Retention(RetentionPolicy.SOURCE)",
+                "@net.java.sezpoz.Indexable(indexedBy=\"b\")",
+                "public @interface A {",
+                "Deprecated b();",
+                "}");
+        TestUtils.runAptExpectingErrors(src, null, clz, null, "cannot index by attribute b");
+    }
+
     // XXX the following should be moved to IndexerTestBase when Indexer5 implements these things:
 
     @Test public void nonPublic() throws Exception {
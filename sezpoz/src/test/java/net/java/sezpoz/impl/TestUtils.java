@@ -38,7 +38,6 @@ import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.Writer;
@@ -99,9 +98,10 @@ public class TestUtils {
      * @param dest a dest dir (also compiles classes there)
      * @param cp classpath entries for processor (Indexable will always be accessible), or null
      * @param stderr output stream to use, or null for test console
+     * @param options additional processor options, e.g. {@code sezpoz.aggregate=true}
      * @throws Exception if something unexpected went wrong
      */
-    public static void runApt(File src, String srcIncludes, File dest, File[] cp, OutputStream stderr) throws Exception {
+    public static void runApt(File src, String srcIncludes, File dest, File[] cp, OutputStream stderr, String... options) throws Exception {
         List<String> args = new ArrayList<String>();
         String indexableLoc = new File(URI.create(Indexable.class.getProtectionDomain().getCodeSource().getLocation().toExternalForm())).getAbsolutePath();
         args.add("-processorpath");
@@ -119,6 +119,9 @@ public class TestUtils {
         args.add(dest.getAbsolutePath());
         dest.mkdirs();
         args.add("-Asezpoz.quiet=true");
+        for (String option : options) {
+            args.add("-A" + option);
+        }
         scan(args, src, srcIncludes);
         //System.err.println("running apt with args: " + args);
         String[] argsA = args.toArray(new String[args.size()]);
@@ -144,12 +147,13 @@ public class TestUtils {
      * @param dest a dest dir (also compiles classes there)
      * @param cp classpath entries for processor (Indexable will always be accessible), or null
      * @param error an error you expect to see printed (APT must also fail), else assertion failure
+     * @param options processor options, as {@code key=value}
      * @throws Exception if something unexpected went wrong
      */
-    public static void runAptExpectingErrors(File src, String srcIncludes, File dest, File[] cp, String error) throws Exception {
+    public static void runAptExpectingErrors(File src, String srcIncludes, File dest, File[] cp, String error, String... options) throws Exception {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         try {
-            runApt(src, srcIncludes, dest, cp, baos);
+            runApt(src, srcIncludes, dest, cp, baos, options);
             Assert.fail("annotation processing should have failed");
         } catch (AptFailedException x) {
             String log = baos.toString();
@@ -199,13 +203,8 @@ public class TestUtils {
             File f = new File(dir, kid);
             InputStream is = new FileInputStream(f);
             try {
-                ObjectInputStream ois = new ObjectInputStream(is);
                 List<String> entries = new ArrayList<String>();
-                while (true) {
-                    SerAnnotatedElement el = (SerAnnotatedElement) ois.readObject();
-                    if (el == null) {
-                        break;
-                    }
+                for (SerAnnotatedElement el : IndexFile.read(is)) {
                     entries.add(el.toString());
                 }
                 metadata.put(kid, entries);